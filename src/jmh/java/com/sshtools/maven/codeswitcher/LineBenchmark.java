@@ -0,0 +1,210 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the individual steps each file goes through: the pre-scan that
+ * decides whether it is processed, splitting it into lines, classifying each
+ * line, and replacing tokens and writing each line out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineBenchmark {
+
+	@Param({ "2000" })
+	public int lines;
+
+	@Param({ "0", "10", "100" })
+	public int tokens;
+
+	private List<String> source;
+	private byte[] data;
+	private byte[] plain;
+	private TokenMatcher tokenMatcher;
+	private PreScan preScan;
+	private CodeSwitcher switcher;
+	private File dir;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		source = SyntheticSource.generate(lines, 0.05, 5, Math.max(1, tokens), 0);
+		data = SyntheticSource.encode(source);
+		plain = SyntheticSource.encode(SyntheticSource.generate(lines, 0, 5, 0, 0));
+		tokenMatcher = new TokenMatcher(SyntheticSource.tokens(tokens));
+		preScan = new PreScan(SyntheticSource.tokens(tokens).keySet(), StandardCharsets.UTF_8);
+		switcher = new CodeSwitcher();
+		switcher.setEncoding(StandardCharsets.UTF_8);
+		switcher.setLineSeparator("\n");
+		dir = Files.createTempDirectory("codeswitcher-bench").toFile();
+		file = new File(dir, "Generated.java");
+		SyntheticSource.write(source, file);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	/**
+	 * Read a file into the buffer kept for the thread, as every file is
+	 * before it is scanned.
+	 */
+	@Benchmark
+	public ByteBuffer read() throws IOException {
+		return preScan.read(file);
+	}
+
+	/**
+	 * Scan the whole of a file that has no directives or tokens, as must be
+	 * done before it can be skipped.
+	 */
+	@Benchmark
+	public boolean needsProcessing() {
+		return preScan.needsProcessing(ByteBuffer.wrap(plain));
+	}
+
+	/**
+	 * Split a file into lines and decode each of them.
+	 */
+	@Benchmark
+	public void byteLines(Blackhole bh) {
+		ByteLines bytes = new ByteLines(ByteBuffer.wrap(data), StandardCharsets.UTF_8);
+		for (int i = 0; bytes.has(i); i++) {
+			bh.consume(bytes.get(i));
+		}
+	}
+
+	/**
+	 * Classify each line the way the engine does, matching directives and
+	 * comment syntax without building a stripped copy of the line. Run with
+	 * <code>-prof gc</code> to compare the allocation rate with
+	 * {@link #classifyByStrippingSpaces(Blackhole)}.
+	 */
+	@Benchmark
+	public void classify(Blackhole bh) {
+		for (String line : source) {
+			bh.consume(SourceLine.classify(line));
+		}
+	}
+
+	/**
+	 * Classify each line as the engine used to, by stripping all white space
+	 * from it and matching the copy.
+	 */
+	@Benchmark
+	public void classifyByStrippingSpaces(Blackhole bh) {
+		for (String line : source) {
+			String lineStripped = CodeSwitcher.stripSpaces(line);
+			int comment = 0;
+			if (lineStripped.equals("/*") || lineStripped.equals("*/")) {
+				comment = SourceLine.COMMENT_BOUNDARY;
+			} else if (lineStripped.startsWith("*")) {
+				comment = SourceLine.COMMENT_STAR;
+			} else if (lineStripped.startsWith("//") && !lineStripped.startsWith("//#")) {
+				comment = SourceLine.COMMENT_SLASHES;
+			}
+			int directive = SourceLine.NONE;
+			String argument = null;
+			if (lineStripped.indexOf("//#") != -1) {
+				if (lineStripped.startsWith("//#[")) {
+					directive = SourceLine.SINGLE_LINE;
+				} else if (lineStripped.startsWith("//#ifdef")) {
+					directive = SourceLine.IFDEF;
+					argument = lineStripped.substring(8);
+				} else if (lineStripped.startsWith("//#else")) {
+					directive = SourceLine.ELSE;
+				} else if (lineStripped.startsWith("//#endif")) {
+					directive = SourceLine.ENDIF;
+				} else if (lineStripped.startsWith("//#del")) {
+					directive = SourceLine.DEL;
+					argument = lineStripped.substring(6);
+				}
+			}
+			bh.consume(comment);
+			bh.consume(directive);
+			bh.consume(argument);
+		}
+	}
+
+	@Benchmark
+	public void replaceTokens(Blackhole bh) {
+		for (String line : source) {
+			bh.consume(tokenMatcher.replace(line));
+		}
+	}
+
+	/**
+	 * Write every line of a file that has not been edited. Only lines in
+	 * which a token is replaced are looked at, and nothing is written until
+	 * the first of them.
+	 */
+	@Benchmark
+	public boolean write() throws IOException {
+		return write(false);
+	}
+
+	/**
+	 * Write every line of a file that has been edited, so each is compared
+	 * with the original to find the first that differs.
+	 */
+	@Benchmark
+	public boolean writeEdited() throws IOException {
+		return write(true);
+	}
+
+	private boolean write(boolean edited) throws IOException {
+		CodeSwitcher.Output output = switcher.new Output(file, null, tokenMatcher,
+				new ByteLines(ByteBuffer.wrap(data), StandardCharsets.UTF_8));
+		try {
+			for (String line : source) {
+				output.write(line, edited);
+			}
+			output.finish(edited);
+			return output.isChanged();
+		} finally {
+			output.close();
+		}
+	}
+}
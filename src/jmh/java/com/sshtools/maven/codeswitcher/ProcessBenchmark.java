@@ -0,0 +1,107 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures processing a set of generated files from start to finish, reading
+ * each source and writing the result to a separate target.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessBenchmark {
+
+	private static final int FILES = 20;
+
+	@Param({ "100", "2000" })
+	public int lines;
+
+	@Param({ "0.0", "0.02", "0.1" })
+	public double density;
+
+	@Param({ "2", "20" })
+	public int blockSize;
+
+	@Param({ "0", "10" })
+	public int tokens;
+
+	@Param({ "comment", "strip" })
+	public String mode;
+
+	private File dir;
+	private CodeSwitcher switcher;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("codeswitcher-bench").toFile();
+		File source = new File(dir, "source");
+		File target = new File(dir, "target");
+		if (!source.mkdirs()) {
+			throw new IOException("Failed to create directory " + source);
+		}
+		switcher = new CodeSwitcher() {
+			@Override
+			protected void printMessage(File f, int line, String message) {
+			}
+		};
+		switcher.setComment(mode.equals("comment"));
+		switcher.setEncoding(StandardCharsets.UTF_8);
+		switcher.setTokens(SyntheticSource.tokens(tokens));
+		switcher.enableSymbol(SyntheticSource.ENABLED);
+		switcher.disableSymbol(SyntheticSource.DISABLED);
+		for (int i = 0; i < FILES; i++) {
+			File file = new File(source, "Generated" + i + ".java");
+			SyntheticSource.write(SyntheticSource.generate(lines, density, blockSize, tokens, i), file);
+			switcher.addFile(file, new File(target, file.getName()));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Benchmark
+	public CodeSwitcher process() throws ParseException {
+		switcher.process();
+		return switcher;
+	}
+}
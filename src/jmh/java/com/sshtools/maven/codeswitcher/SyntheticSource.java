@@ -0,0 +1,149 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates Java-like source for benchmarks. The same parameters always
+ * produce the same source, so results are comparable across commits.
+ */
+class SyntheticSource {
+
+	static final String ENABLED = "ENABLED";
+	static final String DISABLED = "DISABLED";
+
+	private SyntheticSource() {
+	}
+
+	/**
+	 * Generate lines of source.
+	 *
+	 * @param lines     approximate number of lines
+	 * @param density   fraction of lines that start a directive
+	 * @param blockSize number of lines inside each conditional block
+	 * @param tokens    number of distinct tokens used
+	 * @param seed      random seed
+	 * @return lines
+	 */
+	static List<String> generate(int lines, double density, int blockSize, int tokens, long seed) {
+		Random r = new Random(seed);
+		List<String> l = new ArrayList<String>(lines + blockSize * 2);
+		l.add("package bench;");
+		l.add("");
+		l.add("public class Generated {");
+		while (l.size() < lines - 1) {
+			if (r.nextDouble() < density) {
+				switch (r.nextInt(3)) {
+				case 0:
+					block(l, r, ENABLED, blockSize, tokens);
+					break;
+				case 1:
+					block(l, r, DISABLED, blockSize, tokens);
+					break;
+				default:
+					l.add("\t\t//#[" + (r.nextBoolean() ? ENABLED : DISABLED) + "] call();");
+					break;
+				}
+			} else {
+				l.add(line(r, tokens));
+			}
+		}
+		l.add("}");
+		return l;
+	}
+
+	/**
+	 * Generate the tokens used by {@link #generate(int, double, int, int, long)}.
+	 *
+	 * @param tokens number of tokens
+	 * @return tokens
+	 */
+	static Map<String, String> tokens(int tokens) {
+		Map<String, String> t = new LinkedHashMap<String, String>();
+		for (int i = 0; i < tokens; i++) {
+			t.put(token(i), "value" + i);
+		}
+		return t;
+	}
+
+	/**
+	 * Encode lines as UTF-8, each ending with <code>\n</code>.
+	 *
+	 * @param lines lines
+	 * @return data
+	 */
+	static byte[] encode(List<String> lines) {
+		StringBuilder b = new StringBuilder();
+		for (String line : lines) {
+			b.append(line).append('\n');
+		}
+		return b.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write lines to a file, encoded as by {@link #encode(List)}.
+	 *
+	 * @param lines lines
+	 * @param file  file
+	 * @throws IOException on error
+	 */
+	static void write(List<String> lines, File file) throws IOException {
+		Files.write(file.toPath(), encode(lines));
+	}
+
+	private static String token(int i) {
+		return "@TOKEN" + i + "@";
+	}
+
+	private static void block(List<String> l, Random r, String symbol, int blockSize, int tokens) {
+		l.add("\t\t//#ifdef " + symbol);
+		for (int i = 0; i < blockSize; i++) {
+			l.add("\t\t//" + line(r, tokens).trim());
+		}
+		if (r.nextBoolean()) {
+			l.add("\t\t//#else");
+			for (int i = 0; i < blockSize; i++) {
+				l.add(line(r, tokens));
+			}
+		}
+		l.add("\t\t//#endif");
+	}
+
+	private static String line(Random r, int tokens) {
+		if (tokens > 0 && r.nextInt(10) == 0) {
+			return "\t\tString s" + r.nextInt(1000) + " = \"" + token(r.nextInt(tokens)) + "\";";
+		}
+		switch (r.nextInt(4)) {
+		case 0:
+			return "";
+		case 1:
+			return "\t\t// A comment about the value " + r.nextInt(1000);
+		case 2:
+			return "\t\tint value" + r.nextInt(1000) + " = compute(" + r.nextInt(1000) + ", " + r.nextInt(1000) + ");";
+		default:
+			return "\t\tSystem.out.println(\"Line " + r.nextInt(100000) + "\");";
+		}
+	}
+}
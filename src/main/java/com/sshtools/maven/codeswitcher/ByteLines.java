@@ -0,0 +1,172 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The lines of a file held as raw bytes, for character sets where ASCII
+ * characters are encoded as themselves. Lines are split on the bytes for
+ * <code>\n</code>, <code>\r</code> or <code>\r\n</code>, as
+ * {@link java.io.BufferedReader#readLine()} does, and are only decoded when
+ * asked for. Lines that are passed through unchanged are compared and copied
+ * as bytes, so they are never decoded or encoded again.
+ */
+class ByteLines {
+
+	private final byte[] data;
+	private final int offset;
+	private final int limit;
+	private final Charset charset;
+
+	private int[] starts = new int[256];
+	private int[] ends = new int[256];
+	private int count;
+	private int scanned;
+
+	/**
+	 * Constructor. The buffer must be backed by an array, and must not be
+	 * changed while this is in use.
+	 *
+	 * @param data    data, from its position to its limit
+	 * @param charset character set, which must be ASCII compatible
+	 */
+	ByteLines(ByteBuffer data, Charset charset) {
+		this.data = data.array();
+		this.offset = data.arrayOffset() + data.position();
+		this.limit = data.arrayOffset() + data.limit();
+		this.charset = charset;
+		scanned = offset;
+	}
+
+	/**
+	 * Find the line at the given index, if it exists.
+	 *
+	 * @param idx index
+	 * @return <code>false</code> if the data has fewer lines
+	 */
+	boolean has(int idx) {
+		while (count <= idx && scanned < limit) {
+			int i = scanned;
+			while (i < limit && data[i] != '\n' && data[i] != '\r') {
+				i++;
+			}
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+			starts[count] = scanned;
+			ends[count] = i;
+			count++;
+			if (i < limit && data[i] == '\r' && i + 1 < limit && data[i + 1] == '\n') {
+				i++;
+			}
+			scanned = i + 1;
+		}
+		return idx < count;
+	}
+
+	/**
+	 * Decode a line. {@link #has(int)} must have been called for the index.
+	 *
+	 * @param idx index
+	 * @return text
+	 */
+	String get(int idx) {
+		int start = starts[idx];
+		int len = ends[idx] - start;
+		return new String(data, start, len, isAscii(start, len) ? StandardCharsets.ISO_8859_1 : charset);
+	}
+
+	/**
+	 * Get if a line has the given text. {@link #has(int)} must have been
+	 * called for the index. The line is only decoded if either contain
+	 * anything other than ASCII.
+	 *
+	 * @param idx  index
+	 * @param text text
+	 * @return equal
+	 */
+	boolean equals(int idx, String text) {
+		int start = starts[idx];
+		int len = ends[idx] - start;
+		if (isAscii(start, len) && isAscii(text)) {
+			if (len != text.length()) {
+				return false;
+			}
+			for (int i = 0; i < len; i++) {
+				if (data[start + i] != text.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return get(idx).equals(text);
+	}
+
+	/**
+	 * Write the bytes of a line, without its terminator. {@link #has(int)}
+	 * must have been called for the index.
+	 *
+	 * @param idx index
+	 * @param out stream to write to
+	 * @throws IOException on error
+	 */
+	void write(int idx, OutputStream out) throws IOException {
+		out.write(data, starts[idx], ends[idx] - starts[idx]);
+	}
+
+	/**
+	 * Encode text, without going through the encoder if it is all ASCII.
+	 *
+	 * @param text    text
+	 * @param charset ASCII compatible character set
+	 * @return bytes
+	 */
+	static byte[] encode(String text, Charset charset) {
+		if (!isAscii(text)) {
+			return text.getBytes(charset);
+		}
+		byte[] b = new byte[text.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) text.charAt(i);
+		}
+		return b;
+	}
+
+	private boolean isAscii(int start, int len) {
+		for (int i = start; i < start + len; i++) {
+			if (data[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isAscii(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
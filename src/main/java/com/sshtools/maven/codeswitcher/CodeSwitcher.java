@@ -89,8 +89,29 @@ package com.sshtools.maven.codeswitcher;
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.JavaFileObject;
 
 /**
  * Modifies the source code to support different JDK or profile settings.
@@ -98,25 +119,208 @@ import java.util.*;
 public class CodeSwitcher {
 
 	private static final String DEFAULT_LINE_SEPARATOR = System.getProperty("line.separator", "\n");
-	private List<String> vList;
+	private List<SourceFile> vList;
+	private final List<SourceTree> trees = new ArrayList<SourceTree>();
+	private List<String> includes;
+	private List<String> excludes;
+	private PathSelector selector;
 	private List<String> vSwitchOn;
 	private List<String> vSwitchOff;
-	private List<String> vSwitches;
+	private Set<String> vSwitches;
 	private boolean comment = true;
 	private boolean failOnError = true;
 	private Map<String, String> tokens;
 	private String lineSeparator = DEFAULT_LINE_SEPARATOR;
 	private boolean keepLastModified = true;
+	private boolean onlyWriteChanged;
+	private int threads = 1;
+	private boolean shared;
+	private boolean debug;
+	private Charset encoding = Charset.defaultCharset();
+	private Statistics statistics;
+	private final List<VariantDefinition> variants = new ArrayList<VariantDefinition>();
+	private List<Switches> active;
+	private PreScan preScan;
+	private Map<String, Expression> expressions = new ConcurrentHashMap<String, Expression>();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private Map<File, Set<String>> referencedSymbols;
 
 	/**
 	 * Constructor declaration
 	 * 
 	 */
 	public CodeSwitcher() {
-		vList = new ArrayList<String>();
+		vList = new ArrayList<SourceFile>();
 		vSwitchOn = new ArrayList<String>();
 		vSwitchOff = new ArrayList<String>();
-		vSwitches = new ArrayList<String>();
+		vSwitches = Collections.synchronizedSet(new TreeSet<String>());
+	}
+
+	/**
+	 * Set the number of threads used to process files. When more than one,
+	 * files are processed concurrently and any messages or errors for each
+	 * file are reported once all of its processing is complete, in the same
+	 * order the files were added. Each directory at the top of a directory
+	 * that is added is also walked on its own thread. Zero or less means one
+	 * thread per available processor.
+	 * 
+	 * @param threads number of threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Get the number of threads used to process files. Zero or less means one
+	 * thread per available processor.
+	 * 
+	 * @return number of threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set whether to use the engine shared by every switcher in the JVM that
+	 * is set to use it. Switchers with the same symbols, tokens and variants
+	 * then share their compiled form, and directories are always walked and
+	 * files processed on a pool shared by all of them, of the number of threads set, or one per
+	 * available processor if that is one or less. This suits several
+	 * switchers running at once, such as for the modules of a parallel Maven
+	 * build.
+	 * 
+	 * @param shared use the shared engine
+	 */
+	public void setShared(boolean shared) {
+		this.shared = shared;
+	}
+
+	/**
+	 * Get whether to use the engine shared by every switcher in the JVM that
+	 * is set to use it.
+	 * 
+	 * @return use the shared engine
+	 */
+	public boolean isShared() {
+		return shared;
+	}
+
+	/**
+	 * Set the patterns of the files to process in directories that are added,
+	 * relative to the directory. Patterns are Maven style, such as
+	 * <code>**&#47;*.java</code>. Defaults to all Java source.
+	 * 
+	 * @param includes include patterns
+	 */
+	public void setIncludes(String... includes) {
+		this.includes = includes == null ? null : Arrays.asList(includes);
+		selector = null;
+	}
+
+	/**
+	 * Set the patterns of the files not to process in directories that are
+	 * added, relative to the directory. When the result is written elsewhere,
+	 * these files are copied as they are.
+	 * 
+	 * @param excludes exclude patterns
+	 */
+	public void setExcludes(String... excludes) {
+		this.excludes = excludes == null ? null : Arrays.asList(excludes);
+		selector = null;
+	}
+
+	/**
+	 * Get whether a file found in a directory that is added would be
+	 * processed.
+	 * 
+	 * @param path path relative to the directory, using <code>/</code> as the
+	 *             separator
+	 * @return selected
+	 */
+	boolean isSelected(String path) {
+		return getSelector().isSelected(path);
+	}
+
+	private PathSelector getSelector() {
+		if (selector == null) {
+			selector = new PathSelector(includes, excludes);
+		}
+		return selector;
+	}
+
+	/**
+	 * Set whether the symbols each file refers to in its directives are
+	 * recorded as it is processed, so they may be retrieved with
+	 * {@link #getReferencedSymbols(File)}.
+	 * 
+	 * @param record record symbols
+	 */
+	void setRecordSymbols(boolean record) {
+		referencedSymbols = record ? new ConcurrentHashMap<File, Set<String>>() : null;
+	}
+
+	/**
+	 * Get the symbols a file referred to in its directives when it was
+	 * processed. Only available if symbols are being recorded.
+	 * 
+	 * @param source source file
+	 * @return symbols, or <code>null</code> if the file has not been
+	 *         processed successfully
+	 */
+	Set<String> getReferencedSymbols(File source) {
+		return referencedSymbols == null ? null : referencedSymbols.get(source);
+	}
+
+	/**
+	 * Set whether detailed messages are reported through
+	 * {@link #printDebug(File, int, String)}, such as each block included or
+	 * excluded and each line removed. Otherwise only a summary of the changes
+	 * to each file is reported. Detailed messages are not even built unless
+	 * this is set.
+	 * 
+	 * @param debug debug
+	 */
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+
+	/**
+	 * Get whether detailed messages are reported through
+	 * {@link #printDebug(File, int, String)}.
+	 * 
+	 * @return debug
+	 */
+	public boolean isDebug() {
+		return debug;
+	}
+
+	/**
+	 * Set the character set source files are read and written with. Defaults
+	 * to the platform character set.
+	 * 
+	 * @param encoding character set
+	 */
+	public void setEncoding(Charset encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Get the character set source files are read and written with.
+	 * 
+	 * @return character set
+	 */
+	public Charset getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Set where to collect counters and timings while processing, or
+	 * <code>null</code> to not collect them.
+	 * 
+	 * @param statistics statistics
+	 */
+	void setStatistics(Statistics statistics) {
+		this.statistics = statistics;
 	}
 
 	/**
@@ -141,6 +345,29 @@ public class CodeSwitcher {
 		return keepLastModified;
 	}
 
+	/**
+	 * Set if a result is only written when it differs from what is already in
+	 * the target. Otherwise the target, and its modification time, are left
+	 * as they are. Results that are written are given the current time rather
+	 * than that of the original, so anything built from them, such as
+	 * classes, is seen to be out of date, but nothing else is.
+	 * 
+	 * @param onlyWriteChanged only write changed results
+	 */
+	public void setOnlyWriteChanged(boolean onlyWriteChanged) {
+		this.onlyWriteChanged = onlyWriteChanged;
+	}
+
+	/**
+	 * Get if a result is only written when it differs from what is already in
+	 * the target.
+	 * 
+	 * @return only write changed results
+	 */
+	public boolean isOnlyWriteChanged() {
+		return onlyWriteChanged;
+	}
+
 	/**
 	 * Set the output line separator. Defaults to the platform separator.
 	 * 
@@ -162,7 +389,8 @@ public class CodeSwitcher {
 	/**
 	 * Set a map of tokens that will be used for simple string replacement.
 	 * Every line will be checked for the strings contained in the keys. Any
-	 * occurences will be replaced with the associated value.
+	 * occurences will be replaced with the associated value. Where keys
+	 * overlap, the leftmost match wins, then the longest.
 	 * 
 	 * @param tokens tokens
 	 */
@@ -217,6 +445,35 @@ public class CodeSwitcher {
 		vSwitchOff.add(symbol);
 	}
 
+	/**
+	 * Add a variant of the output. Every file is parsed once, and a separate
+	 * result is produced for each variant added, so each file must be added
+	 * with one target per variant, in the order the variants were added. The
+	 * symbols and tokens of a variant are added to those of this switcher,
+	 * overriding them where they differ. If no variants are added, a single
+	 * result is produced using only the symbols and tokens of this switcher.
+	 * 
+	 * @param name    name of variant, used in messages
+	 * @param enable  symbols to enable, may be <code>null</code>
+	 * @param disable symbols to disable, may be <code>null</code>
+	 * @param tokens  tokens, may be <code>null</code>
+	 * @return index of variant
+	 */
+	public int addVariant(String name, Collection<String> enable, Collection<String> disable,
+			Map<String, String> tokens) {
+		variants.add(new VariantDefinition(name, enable, disable, tokens));
+		return variants.size() - 1;
+	}
+
+	/**
+	 * Get the number of variants added.
+	 * 
+	 * @return number of variants
+	 */
+	public int getVariantCount() {
+		return variants.size();
+	}
+
 	/**
 	 * Set whether any removed code should be commented instead of stripped.
 	 * 
@@ -226,219 +483,1510 @@ public class CodeSwitcher {
 		this.comment = comment;
 	}
 
-	/**
-	 * Get whether any removed code should be commented instead of stripped.
-	 * 
-	 * @return comment out source code instead of stripping it
-	 */
-	public boolean isComment() {
-		return comment;
-	}
+	/**
+	 * Get whether any removed code should be commented instead of stripped.
+	 * 
+	 * @return comment out source code instead of stripping it
+	 */
+	public boolean isComment() {
+		return comment;
+	}
+
+	/**
+	 * Process all files
+	 * 
+	 * @throws ParseException
+	 */
+	public void process() throws ParseException {
+		compile(compileVariants(), vList, trees);
+		processAll(vList, trees);
+	}
+
+	/**
+	 * Process every file in a directory into memory, ready to be compiled,
+	 * rather than writing the result anywhere. Files that need no changes, and
+	 * Java source that is not selected by the include and exclude patterns,
+	 * are read from the directory as they are when compiled. Any other files
+	 * are ignored, as are any files and directories that have been added.
+	 * 
+	 * @param directory directory
+	 * @param variant   name of the variant to produce, or <code>null</code> if
+	 *                  there are no variants
+	 * @return processed source, in the order of their paths
+	 * @throws ParseException on error
+	 */
+	public List<JavaFileObject> processInMemory(Path directory, String variant) throws ParseException {
+		Switches switches = null;
+		for (Switches candidate : compileVariants()) {
+			if (variant == null ? candidate.name == null : variant.equals(candidate.name)) {
+				switches = candidate;
+			}
+		}
+		if (switches == null) {
+			throw new ParseException(variant == null ? "A variant must be chosen when there are variants."
+					: "There is no variant named " + variant + ".", 0);
+		}
+		List<JavaFileObject> results = Collections.synchronizedList(new ArrayList<JavaFileObject>());
+		List<SourceFile> files = Collections.emptyList();
+		List<SourceTree> memory = Collections.singletonList(new SourceTree(directory.toFile(), results));
+		compile(Collections.singletonList(switches), files, memory);
+		processAll(files, memory);
+		List<JavaFileObject> sorted = new ArrayList<JavaFileObject>(results);
+		Collections.sort(sorted, new Comparator<JavaFileObject>() {
+			@Override
+			public int compare(JavaFileObject o1, JavaFileObject o2) {
+				return ((ProcessedSource) o1).path.compareTo(((ProcessedSource) o2).path);
+			}
+		});
+		return sorted;
+	}
+
+	private void processAll(List<SourceFile> files, List<SourceTree> trees) throws ParseException {
+		skipped.set(0);
+		int threadCount = threads < 1 || (shared && threads == 1) ? Runtime.getRuntime().availableProcessors()
+				: threads;
+		if (threadCount == 1 || (trees.isEmpty() && files.size() < 2)) {
+			for (SourceFile file : files) {
+				if (!processFile(file, null)) {
+					printError(file.source, 0, "in file " + file.source + " !");
+				}
+			}
+			for (final SourceTree tree : trees) {
+				try {
+					new Discovery(tree, new SourceTree.Visitor() {
+						@Override
+						public void visit(File source, File[] targets, String path) throws ParseException {
+							if (!CodeSwitcher.this.visit(tree, source, targets, path, null)) {
+								printError(source, 0, "in file " + source + " !");
+							}
+						}
+					}).walk(tree.directory.toPath());
+				} catch (IOException e) {
+					printError(tree.directory, 0, "Failed to read directory " + tree.directory + ". " + e.getMessage());
+				}
+			}
+		} else {
+			processConcurrently(trees.isEmpty() ? Math.min(threadCount, files.size()) : threadCount, files, trees);
+		}
+		if (skipped.get() > 0) {
+			printMessage(null, 0, "Skipped " + skipped.get() + " file(s) with no directives or tokens.");
+		}
+		printMessage(null, 0, "");
+	}
+
+	private void compile(List<Switches> compiled, List<SourceFile> files, List<SourceTree> trees)
+			throws ParseException {
+		active = compiled;
+		int targets = active.size();
+		for (SourceFile file : files) {
+			if (file.targets.length != targets) {
+				throw new ParseException("Expected " + targets + " target(s) for " + file.source + " but there are "
+						+ file.targets.length + ".", 0);
+			}
+			if (targets > 1 && file.isInPlace()) {
+				throw new ParseException("Cannot process " + file.source + " in place when there is more than one variant.", 0);
+			}
+		}
+		for (SourceTree tree : trees) {
+			if (tree.targets.length != targets) {
+				throw new ParseException("Expected " + targets + " target(s) for " + tree.directory
+						+ " but there are " + tree.targets.length + ".", 0);
+			}
+			if (targets > 1 && tree.isInPlace()) {
+				throw new ParseException("Cannot process " + tree.directory + " in place when there is more than one variant.", 0);
+			}
+		}
+		Set<String> tokenKeys = new HashSet<String>();
+		for (Switches switches : active) {
+			tokenKeys.addAll(switches.tokenKeys);
+		}
+		if (shared) {
+			expressions = SharedEngine.getExpressions();
+			preScan = SharedEngine.getPreScan(tokenKeys, encoding);
+		} else {
+			expressions = new ConcurrentHashMap<String, Expression>();
+			preScan = new PreScan(tokenKeys, encoding);
+		}
+		getSelector();
+	}
+
+	/**
+	 * Process a single file found in a directory that was added again, such
+	 * as when it has changed. {@link #process()} must have been called first,
+	 * and the symbols, tokens and variants are as they were then.
+	 * 
+	 * @param tree   directory the file is in
+	 * @param source file
+	 * @return <code>false</code> if the file could not be processed
+	 * @throws ParseException if an error is reported and the switcher fails
+	 *                        on errors
+	 */
+	boolean update(SourceTree tree, File source) throws ParseException {
+		String path = tree.getPath(source.toPath());
+		if (!visit(tree, source, tree.getTargets(source, path), path, null)) {
+			printError(source, 0, "in file " + source + " !");
+			return false;
+		}
+		return true;
+	}
+
+	List<SourceTree> getTrees() {
+		return trees;
+	}
+
+	private List<Switches> compileVariants() {
+		return shared ? SharedEngine.getSwitches(getConfigurationHash(), this) : newVariants();
+	}
+
+	/*
+	 * A hash of the symbols, tokens and variants. Each string is prefixed by
+	 * its length, so different configurations cannot give the same text.
+	 */
+	private String getConfigurationHash() {
+		StringBuilder b = new StringBuilder();
+		appendConfiguration(b, null, vSwitchOn, vSwitchOff, tokens);
+		for (VariantDefinition variant : variants) {
+			appendConfiguration(b, variant.name, variant.enable, variant.disable, variant.tokens);
+		}
+		return SourceManifest.hash(b.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void appendConfiguration(StringBuilder b, String name, Collection<String> on,
+			Collection<String> off, Map<String, String> tokens) {
+		append(b.append("name"), name);
+		b.append("on").append(on.size());
+		for (String symbol : on) {
+			append(b, symbol);
+		}
+		b.append("off").append(off.size());
+		for (String symbol : off) {
+			append(b, symbol);
+		}
+		Map<String, String> sorted = tokens == null ? Collections.<String, String>emptyMap()
+				: new TreeMap<String, String>(tokens);
+		b.append("tokens").append(sorted.size());
+		for (Map.Entry<String, String> en : sorted.entrySet()) {
+			append(b, en.getKey());
+			append(b, en.getValue());
+		}
+	}
+
+	private static void append(StringBuilder b, String text) {
+		if (text == null) {
+			b.append('-');
+		} else {
+			b.append(text.length()).append(':').append(text);
+		}
+	}
+
+	List<Switches> newVariants() {
+		List<Switches> compiled = new ArrayList<Switches>();
+		if (variants.isEmpty()) {
+			compiled.add(new Switches(null, vSwitchOn, vSwitchOff, tokens));
+			return compiled;
+		}
+		for (VariantDefinition variant : variants) {
+			Set<String> on = new LinkedHashSet<String>(vSwitchOn);
+			Set<String> off = new LinkedHashSet<String>(vSwitchOff);
+			on.removeAll(variant.disable);
+			off.removeAll(variant.enable);
+			on.addAll(variant.enable);
+			off.addAll(variant.disable);
+			Map<String, String> variantTokens = new LinkedHashMap<String, String>();
+			if (tokens != null) {
+				variantTokens.putAll(tokens);
+			}
+			variantTokens.putAll(variant.tokens);
+			compiled.add(new Switches(variant.name, on, off, variantTokens));
+		}
+		return compiled;
+	}
+
+	private void processConcurrently(int threadCount, List<SourceFile> files, List<SourceTree> trees)
+			throws ParseException {
+		final TaskGroup executor = shared ? new TaskGroup(SharedEngine.getPool(threadCount), false)
+				: new TaskGroup(Executors.newFixedThreadPool(threadCount), true);
+		/*
+		 * A walker never waits for the files it finds, so when the engine is
+		 * shared it runs on the same pool rather than one of its own.
+		 */
+		TaskGroup walkers = trees.isEmpty() || shared ? executor
+				: new TaskGroup(Executors.newFixedThreadPool(threadCount), true);
+		try {
+			/*
+			 * Files are processed as soon as they are found. Results are
+			 * reported a batch at a time, in the order the batches were
+			 * created, and within each in the order its files were added or
+			 * found, regardless of completion order.
+			 */
+			List<Batch> batches = new ArrayList<Batch>();
+			Batch added = new Batch();
+			batches.add(added);
+			for (final SourceFile file : files) {
+				added.add(file.source, executor.submit(new Callable<Messages>() {
+					@Override
+					public Messages call() throws Exception {
+						Messages messages = new Messages();
+						messages.success = processFile(file, messages);
+						return messages;
+					}
+				}));
+			}
+			added.end();
+
+			for (final SourceTree tree : trees) {
+				Batch top = new Batch();
+				batches.add(top);
+				List<Path> directories;
+				try {
+					directories = new Discovery(tree, submitter(tree, top, executor)).split();
+				} catch (IOException e) {
+					top.fail(tree.directory, e);
+					directories = Collections.emptyList();
+				} finally {
+					top.end();
+				}
+				for (final Path directory : directories) {
+					final Batch batch = new Batch();
+					batches.add(batch);
+					walkers.submit(new Callable<Void>() {
+						@Override
+						public Void call() {
+							try {
+								new Discovery(tree, submitter(tree, batch, executor)).walk(directory);
+							} catch (IOException | ParseException | RuntimeException e) {
+								batch.fail(directory.toFile(), e);
+							} finally {
+								batch.end();
+							}
+							return null;
+						}
+					});
+				}
+			}
+
+			for (Batch batch : batches) {
+				batch.report();
+			}
+		} finally {
+			executor.close();
+			if (walkers != executor) {
+				walkers.close();
+			}
+		}
+	}
+
+	private SourceTree.Visitor submitter(final SourceTree tree, final Batch batch, final TaskGroup executor) {
+		return new SourceTree.Visitor() {
+			@Override
+			public void visit(final File source, final File[] targets, final String path) {
+				batch.add(source, executor.submit(new Callable<Messages>() {
+					@Override
+					public Messages call() throws Exception {
+						Messages messages = new Messages();
+						messages.success = CodeSwitcher.this.visit(tree, source, targets, path, messages);
+						return messages;
+					}
+				}));
+			}
+		};
+	}
+
+	/*
+	 * Process a file found in a directory, or if it is not selected, copy it
+	 * as it is when the result is written elsewhere.
+	 */
+	private boolean visit(SourceTree tree, File source, File[] targets, String path, Messages messages)
+			throws ParseException {
+		if (tree.memory != null) {
+			if (selector.isSelected(path)) {
+				return processFile(new SourceFile(source, path, tree.memory), messages);
+			} else if (path.endsWith(".java")) {
+				tree.memory.add(new ProcessedSource(source, path, null, encoding));
+			}
+			return true;
+		} else if (selector.isSelected(path)) {
+			return processFile(new SourceFile(source, targets), messages);
+		} else if (tree.isInPlace()) {
+			return true;
+		}
+		long started = System.nanoTime();
+		try {
+			for (File target : targets) {
+				copyOutput(source, target, source.lastModified());
+				if (statistics != null) {
+					statistics.bytesWritten.addAndGet(target.length());
+				}
+			}
+		} catch (IOException e) {
+			String text = "Failed to copy file " + source + ". " + e.getMessage();
+			if (messages == null) {
+				printError(source, 0, text);
+			} else {
+				messages.add(Message.ERROR, source, 0, text);
+			}
+			return false;
+		}
+		if (statistics != null) {
+			statistics.scanned.incrementAndGet();
+			statistics.bytesRead.addAndGet(source.length());
+			statistics.copyNanos.addAndGet(System.nanoTime() - started);
+		}
+		return true;
+	}
+
+	/**
+	 * Walks part of a tree, adding the time spent finding files, but not the
+	 * time spent visiting them, to the discovery time.
+	 */
+	private class Discovery implements SourceTree.Visitor {
+		private final SourceTree tree;
+		private final SourceTree.Visitor visitor;
+		private long visiting;
+
+		Discovery(SourceTree tree, SourceTree.Visitor visitor) {
+			this.tree = tree;
+			this.visitor = visitor;
+		}
+
+		@Override
+		public void visit(File source, File[] targets, String path) throws IOException, ParseException {
+			long started = System.nanoTime();
+			try {
+				visitor.visit(source, targets, path);
+			} finally {
+				visiting += System.nanoTime() - started;
+			}
+		}
+
+		List<Path> split() throws IOException, ParseException {
+			long started = System.nanoTime();
+			try {
+				return tree.split(this);
+			} finally {
+				record(started);
+			}
+		}
+
+		void walk(Path start) throws IOException, ParseException {
+			long started = System.nanoTime();
+			try {
+				tree.walk(start, this);
+			} finally {
+				record(started);
+			}
+		}
+
+		private void record(long started) {
+			if (statistics != null) {
+				statistics.discoveryNanos.addAndGet(System.nanoTime() - started - visiting);
+			}
+			visiting = 0;
+		}
+	}
+
+	/**
+	 * The results of the files added, or found by walking part of a
+	 * directory, in order. The end is marked once no more will be added.
+	 */
+	private class Batch {
+		private final BlockingQueue<Result> results = new LinkedBlockingQueue<Result>();
+
+		void add(File source, Future<Messages> future) {
+			results.add(new Result(source, future, null));
+		}
+
+		void fail(File directory, Exception failure) {
+			results.add(new Result(directory, null, failure));
+		}
+
+		void end() {
+			results.add(new Result(null, null, null));
+		}
+
+		void report() throws ParseException {
+			for (;;) {
+				Result result;
+				try {
+					result = results.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ParseException("Interrupted while waiting for files to be processed.", 0);
+				}
+				if (result.file == null) {
+					return;
+				} else if (result.failure != null) {
+					printError(result.file, 0,
+							"Failed to read directory " + result.file + ". " + result.failure.getMessage());
+				} else {
+					Messages messages = getResult(result.future);
+					messages.replay();
+					if (!messages.success) {
+						printError(result.file, 0, "in file " + result.file + " !");
+					}
+				}
+			}
+		}
+	}
+
+	private static class Result {
+		final File file;
+		final Future<Messages> future;
+		final Exception failure;
+
+		Result(File file, Future<Messages> future, Exception failure) {
+			this.file = file;
+			this.future = future;
+			this.failure = failure;
+		}
+	}
+
+	private static Messages getResult(Future<Messages> future) throws ParseException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ParseException("Interrupted while waiting for files to be processed.", 0);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("Failed to process file.", cause);
+		}
+	}
+
+	/**
+	 * Messages and errors collected while a single file is processed on a
+	 * worker thread, to be reported later on the calling thread.
+	 */
+	class Messages {
+		private final List<Message> entries = new ArrayList<Message>();
+		private boolean success;
+
+		void add(int level, File f, int line, String text) {
+			entries.add(new Message(level, f, line, text));
+		}
+
+		void replay() throws ParseException {
+			for (Message message : entries) {
+				print(message.level, message.file, message.line, message.text);
+			}
+		}
+	}
+
+	static class Message {
+		static final int ERROR = 0;
+		static final int INFO = 1;
+		static final int DEBUG = 2;
+
+		final int level;
+		final File file;
+		final int line;
+		final String text;
+
+		Message(int level, File file, int line, String text) {
+			this.level = level;
+			this.file = file;
+			this.line = line;
+			this.text = text;
+		}
+	}
+
+	private void print(int level, File f, int line, String text) throws ParseException {
+		switch (level) {
+		case Message.ERROR:
+			printError(f, line, text);
+			break;
+		case Message.DEBUG:
+			printDebug(f, line, text);
+			break;
+		default:
+			printMessage(f, line, text);
+			break;
+		}
+	}
+
+	/**
+	 * Get the number of files skipped by the last {@link #process()} because
+	 * they could not contain any directives or tokens.
+	 * 
+	 * @return skipped files
+	 */
+	public int getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Prints out all used labels
+	 */
+	void printSwitches() {
+		printMessage(null, 0, "Used labels:");
+		synchronized (vSwitches) {
+			for (String label : vSwitches) {
+				printMessage(null, 0, label);
+			}
+		}
+	}
+
+	/**
+	 * Adds a directory to those that must be processed.
+	 * 
+	 * @param path
+	 */
+	void addDir(String path) {
+		File f = new File(path);
+		if (f.isFile() && path.endsWith(".java")) {
+			vList.add(new SourceFile(f, f));
+		} else if (f.isDirectory()) {
+			trees.add(new SourceTree(f, f));
+		}
+	}
+
+	/**
+	 * Adds a directory to those that must be processed, writing the result
+	 * for each file to the same path in other directories. The directory is
+	 * only walked once processing starts, and files are processed as they are
+	 * found. Files that are not selected by the include and exclude patterns
+	 * are copied as they are. There must be one target directory for each
+	 * variant, or a single target if there are no variants.
+	 * 
+	 * @param directory directory
+	 * @param targets   target directories
+	 */
+	void addTree(File directory, File... targets) {
+		trees.add(new SourceTree(directory, targets));
+	}
+
+	/**
+	 * Adds a single file to those that must be processed, writing the result
+	 * to other files instead of replacing the original. The original is only
+	 * read. If it needs no changes, it is copied as is. There must be one
+	 * target for each variant, or a single target if there are no variants.
+	 * 
+	 * @param source  source file
+	 * @param targets target files
+	 */
+	void addFile(File source, File... targets) {
+		vList.add(new SourceFile(source, targets));
+	}
+
+	/**
+	 * A file to process and where to write the result for each variant. When
+	 * the only target is the source, the file is processed in place. When
+	 * processed into memory, there is a single variant and no target file.
+	 */
+	static class SourceFile {
+		final File source;
+		final File[] targets;
+		final String path;
+		final Collection<JavaFileObject> memory;
+
+		SourceFile(File source, File... targets) {
+			this.source = source;
+			this.targets = targets;
+			path = null;
+			memory = null;
+		}
+
+		SourceFile(File source, String path, Collection<JavaFileObject> memory) {
+			this.source = source;
+			this.path = path;
+			this.memory = memory;
+			targets = new File[1];
+		}
+
+		boolean isInPlace() {
+			return targets.length == 1 && source.equals(targets[0]);
+		}
+	}
+
+	/**
+	 * The symbols and tokens of a variant, as added.
+	 */
+	static class VariantDefinition {
+		final String name;
+		final Collection<String> enable;
+		final Collection<String> disable;
+		final Map<String, String> tokens;
+
+		VariantDefinition(String name, Collection<String> enable, Collection<String> disable,
+				Map<String, String> tokens) {
+			this.name = name;
+			this.enable = enable == null ? Collections.<String>emptyList() : new ArrayList<String>(enable);
+			this.disable = disable == null ? Collections.<String>emptyList() : new ArrayList<String>(disable);
+			this.tokens = tokens == null ? Collections.<String, String>emptyMap()
+					: new LinkedHashMap<String, String>(tokens);
+		}
+	}
+
+	/**
+	 * The compiled symbols and tokens of one variant of the output.
+	 */
+	static class Switches {
+		final String name;
+		final SymbolTable symbols;
+		final TokenMatcher tokenMatcher;
+		final Set<String> tokenKeys;
+		/* Expressions bound to the ids of these symbols, by their text */
+		final Map<String, Expression> expressions = new ConcurrentHashMap<String, Expression>();
+
+		Switches(String name, Collection<String> on, Collection<String> off, Map<String, String> tokens) {
+			this.name = name;
+			symbols = new SymbolTable(on, off);
+			tokenMatcher = new TokenMatcher(tokens);
+			tokenKeys = tokens == null ? Collections.<String>emptySet() : tokens.keySet();
+		}
+	}
+
+	/**
+	 * The lines of a file, read and classified once, and shared by the states
+	 * of every variant being produced from it. Lines are kept only until every
+	 * state has read them.
+	 * <p>
+	 * For ASCII compatible character sets, the lines come from the bytes
+	 * already read for the pre-scan, and are only decoded one at a time.
+	 * Otherwise they are read through a decoding reader.
+	 */
+	class Input implements Closeable {
+		private final ByteLines bytes;
+		private final BufferedReader reader;
+		private final LinkedList<SourceLine> lines = new LinkedList<SourceLine>();
+		private int first;
+		private boolean eof;
+
+		Input(File file, ByteLines bytes) throws IOException {
+			this.bytes = bytes;
+			reader = bytes == null ? newReader(file) : null;
+		}
+
+		SourceLine get(int idx) throws IOException {
+			while (!eof && first + lines.size() <= idx) {
+				String line = readLine(first + lines.size());
+				if (line == null) {
+					eof = true;
+				} else {
+					lines.add(SourceLine.classify(line));
+				}
+			}
+			return idx < first + lines.size() ? lines.get(idx - first) : null;
+		}
+
+		private String readLine(int idx) throws IOException {
+			if (bytes == null) {
+				return reader.readLine();
+			}
+			return bytes.has(idx) ? bytes.get(idx) : null;
+		}
+
+		void release(int idx) {
+			while (first < idx && !lines.isEmpty()) {
+				lines.removeFirst();
+				first++;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+	}
+
+	class State {
+		int state = 0; // 0=normal 1=inside_if 2=inside_else
+		boolean switchoff = false;
+		boolean working = false;
+		int removeFrom = -1;
+		int i = 0;
+		public boolean delete;
+		Messages messages;
+		Switches switches;
+		File target;
+		Output output;
+		boolean finished;
+		boolean failed;
+		boolean done;
+		int included;
+		int excluded;
+		int removed;
+		Set<String> symbols;
+		/*
+		 * Set as soon as a line is actually added, removed or altered, so that
+		 * a file that is not edited never needs to be compared with the
+		 * original.
+		 */
+		boolean edited;
+
+		/*
+		 * Only a window of the file is held in memory. Line indexes are those
+		 * the line would have if the whole file were being edited as a list,
+		 * and 'base' is the index of the first line in the window. Lines before
+		 * the window have already been written and can no longer change.
+		 */
+		Input in;
+		int inPos;
+		SourceLine current;
+		List<String> lines = new ArrayList<String>();
+		int base = 0;
+
+		void message(File f, int line, String message) throws ParseException {
+			print(Message.INFO, f, line, message);
+		}
+
+		/*
+		 * Callers must check 'debug' first, so that detail is not built when
+		 * it will not be reported.
+		 */
+		void debug(File f, int line, String message) throws ParseException {
+			print(Message.DEBUG, f, line, message);
+		}
+
+		void error(File f, int line, String error) throws ParseException {
+			print(Message.ERROR, f, line, error);
+		}
+
+		/**
+		 * Report a summary of what was done to the file, if anything.
+		 * 
+		 * @param f file
+		 * @throws ParseException on error
+		 */
+		void summary(File f) throws ParseException {
+			if (included > 0 || excluded > 0 || removed > 0) {
+				message(f, 0, "Included " + included + " block(s), excluded " + excluded + " block(s), removed "
+						+ removed + " line(s)");
+			}
+		}
+
+		private void print(int level, File f, int line, String text) throws ParseException {
+			if (switches.name != null) {
+				text = "[" + switches.name + "] " + text;
+			}
+			if (messages == null) {
+				CodeSwitcher.this.print(level, f, line, text);
+			} else {
+				messages.add(level, f, line, text);
+			}
+		}
+
+		/**
+		 * Move on to the line at the current index, reading it if it is not
+		 * already in the window.
+		 * 
+		 * @return <code>false</code> if the end of the input was reached
+		 * @throws IOException on error
+		 */
+		boolean next() throws IOException {
+			if (i < base + lines.size()) {
+				current = SourceLine.classify(get(i));
+				return true;
+			}
+			return read(i);
+		}
+
+		/**
+		 * Read from the input until the line at the given index is in the
+		 * window.
+		 * 
+		 * @param idx index
+		 * @return <code>false</code> if the end of the input was reached first
+		 * @throws IOException on error
+		 */
+		boolean read(int idx) throws IOException {
+			while (base + lines.size() <= idx) {
+				SourceLine line = in.get(inPos);
+				if (line == null) {
+					return false;
+				}
+				inPos++;
+				current = line;
+				lines.add(line.text);
+			}
+			return true;
+		}
+
+		String get(int idx) {
+			return lines.get(idx - base);
+		}
+
+		void set(int idx, String line) {
+			if (!line.equals(lines.set(idx - base, line))) {
+				edited = true;
+			}
+		}
+
+		String remove(int idx) {
+			edited = true;
+			return lines.remove(idx - base);
+		}
+
+		void add(int idx, String line) {
+			edited = true;
+			lines.add(idx - base, line);
+		}
+
+		int size() {
+			return base + lines.size();
+		}
+
+		/**
+		 * Write out all lines that can no longer be changed. The current and
+		 * previous lines, and any lines that may yet be removed, are kept.
+		 * 
+		 * @throws IOException on error
+		 */
+		void flush() throws IOException {
+			int keepFrom = removeFrom == -1 ? i : Math.min(i, removeFrom - 1);
+			int count = keepFrom - base;
+			if (count > 0) {
+				flush(count);
+			}
+		}
+
+		void flushAll() throws IOException {
+			flush(lines.size());
+			output.finish(edited);
+		}
 
-	/**
-	 * Process all files
-	 * 
-	 * @throws ParseException
-	 */
-	public void process() throws ParseException {
-		for (String file : vList) {
-			if (!processFile(file)) {
-				printError(new File(file), 0, "in file " + file + " !");
+		private void flush(int count) throws IOException {
+			List<String> done = lines.subList(0, count);
+			for (String line : done) {
+				output.write(line, edited);
 			}
+			done.clear();
+			base += count;
 		}
-		printMessage(null, 0, "");
 	}
 
 	/**
-	 * Prints out all used labels
+	 * Receives the final lines of a file, replacing any tokens. Nothing is
+	 * written until a line differs from the line at the same position in the
+	 * original file. At that point, the identical lines before it are copied
+	 * from the original and every line from then on is written.
+	 * <p>
+	 * Until the file is edited, every line received is known to be the line at
+	 * the same position in the original, so only lines in which a token was
+	 * replaced need to be looked at. Once it is edited, lines are compared with
+	 * the original, as edits may still cancel each other out, such as a comment
+	 * that is unwrapped and then wrapped again. An edited file that produces
+	 * fewer lines than the original is always changed.
+	 * <p>
+	 * When the original is available as bytes, lines are compared and the
+	 * identical lines copied without decoding them, and the output is written
+	 * as bytes.
+	 * <p>
+	 * Output is written to a temporary file in the same directory as the
+	 * target, which only replaces the target, in a single move, once it is
+	 * committed. Closing without committing removes it. When there is no
+	 * target, output is kept in memory instead.
 	 */
-	void printSwitches() {
-		printMessage(null, 0, "Used labels:");
-		for (int i = 0; i < vSwitches.size(); i++) {
-			printMessage(null, 0, vSwitches.get(i));
+	class Output implements Closeable {
+		private final File source;
+		private final File target;
+		private final TokenMatcher tokenMatcher;
+		private final ByteLines bytes;
+		private BufferedReader original;
+		private Path temp;
+		private ByteArrayOutputStream buffer;
+		private OutputStream out;
+		private Writer writer;
+		private byte[] separator;
+		private int count;
+		long replaceNanos;
+		long writeNanos;
+
+		Output(File source, File target, TokenMatcher tokenMatcher, ByteLines bytes) throws IOException {
+			this.source = source;
+			this.target = target;
+			this.tokenMatcher = tokenMatcher;
+			this.bytes = bytes;
 		}
-	}
 
-	/**
-	 * Adds a directory to those that must be processed.
-	 * 
-	 * @param path
-	 */
-	void addDir(String path) {
-		File f = new File(path);
-		if (f.isFile() && path.endsWith(".java")) {
-			vList.add(path);
-		} else if (f.isDirectory()) {
-			String list[] = f.list();
-			for (int i = 0; i < list.length; i++) {
-				addDir(path + File.separatorChar + list[i]);
+		/**
+		 * Write a line.
+		 * 
+		 * @param line   line
+		 * @param edited whether any line of the file has been edited yet
+		 * @throws IOException on error
+		 */
+		void write(String line, boolean edited) throws IOException {
+			if (statistics == null) {
+				writeReplaced(line, tokenMatcher.replace(line), edited);
+			} else {
+				long started = System.nanoTime();
+				String replacedLine = tokenMatcher.replace(line);
+				long replaced = System.nanoTime();
+				replaceNanos += replaced - started;
+				writeReplaced(line, replacedLine, edited);
+				if (isChanged()) {
+					writeNanos += System.nanoTime() - replaced;
+				}
+			}
+		}
+
+		private void writeReplaced(String unreplaced, String line, boolean edited) throws IOException {
+			if (!isChanged()) {
+				if (edited ? isOriginal(line) : line == unreplaced || line.equals(unreplaced)) {
+					count++;
+					return;
+				}
+				open();
+			}
+			if (out != null) {
+				out.write(ByteLines.encode(line, encoding));
+				out.write(separator);
+			} else {
+				writer.write(line);
+				writer.write(lineSeparator);
+			}
+			count++;
+		}
+
+		/**
+		 * Called once all lines have been written.
+		 * 
+		 * @param edited whether the file was edited
+		 * @throws IOException on error
+		 */
+		void finish(boolean edited) throws IOException {
+			if (!isChanged() && edited && hasOriginal()) {
+				// Lines were removed from the end
+				open();
+			}
+		}
+
+		private boolean isOriginal(String line) throws IOException {
+			if (bytes != null) {
+				return bytes.has(count) && bytes.equals(count, line);
+			}
+			return line.equals(readOriginal());
+		}
+
+		private boolean hasOriginal() throws IOException {
+			if (bytes != null) {
+				return bytes.has(count);
+			}
+			return readOriginal() != null;
+		}
+
+		private String readOriginal() throws IOException {
+			if (original == null) {
+				// Not needed until the file is edited
+				original = newReader(source);
+				for (int i = 0; i < count; i++) {
+					original.readLine();
+				}
+			}
+			return original.readLine();
+		}
+
+		private void open() throws IOException {
+			OutputStream stream;
+			if (target == null) {
+				stream = buffer = new ByteArrayOutputStream();
+			} else {
+				File dir = target.getParentFile();
+				if (dir != null && !dir.mkdirs() && !dir.isDirectory()) {
+					throw new IOException("Failed to create directory " + dir);
+				}
+				/*
+				 * Not Files.createTempFile(), as that makes the file only readable
+				 * by the owner, which would then replace the permissions of the
+				 * target.
+				 */
+				String name = "." + target.getName() + "." + Long.toHexString(System.nanoTime()) + ".tmp";
+				temp = dir == null ? Paths.get(name) : dir.toPath().resolve(name);
+				stream = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			}
+			if (bytes == null) {
+				if (original != null) {
+					original.close();
+					original = null;
+				}
+				writer = new BufferedWriter(new OutputStreamWriter(stream, encoding));
+				copyUnchanged();
+			} else {
+				out = new BufferedOutputStream(stream);
+				separator = ByteLines.encode(lineSeparator, encoding);
+				for (int i = 0; i < count; i++) {
+					bytes.write(i, out);
+					out.write(separator);
+				}
+			}
+		}
+
+		boolean isChanged() {
+			return out != null || writer != null;
+		}
+
+		/**
+		 * Move the output over the target, unless only changed results are
+		 * written and the target already has the same content.
+		 * 
+		 * @param lastModified modification time to give the target, or -1 to
+		 *                     leave it as the current time
+		 * @throws IOException on error
+		 */
+		void commit(long lastModified) throws IOException {
+			closeStreams();
+			if (buffer != null) {
+				return;
+			}
+			long started = System.nanoTime();
+			if (onlyWriteChanged && !target.equals(source) && isSameContent(temp, target.toPath())) {
+				// The target already has this content, so leave it as it is
+				Files.delete(temp);
+				temp = null;
+				writeNanos += System.nanoTime() - started;
+				return;
+			}
+			if (lastModified != -1) {
+				Files.setLastModifiedTime(temp, FileTime.fromMillis(lastModified));
+			}
+			if (target.equals(source)) {
+				// Keep the permissions of a file processed in place
+				PosixFileAttributeView view = Files.getFileAttributeView(source.toPath(), PosixFileAttributeView.class);
+				if (view != null) {
+					Files.setPosixFilePermissions(temp, view.readAttributes().permissions());
+				}
+			}
+			try {
+				Files.move(temp, target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException amnse) {
+				Files.move(temp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			temp = null;
+			writeNanos += System.nanoTime() - started;
+		}
+
+		/**
+		 * Get the output kept in memory, once committed.
+		 * 
+		 * @return content
+		 */
+		byte[] getContent() {
+			return buffer.toByteArray();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				closeStreams();
+			} finally {
+				if (temp != null) {
+					Files.deleteIfExists(temp);
+					temp = null;
+				}
+			}
+		}
+
+		private void closeStreams() throws IOException {
+			try {
+				if (original != null) {
+					original.close();
+					original = null;
+				}
+			} finally {
+				Closeable c = out == null ? writer : out;
+				if (c != null) {
+					long started = System.nanoTime();
+					c.close();
+					writeNanos += System.nanoTime() - started;
+				}
+			}
+		}
+
+		private void copyUnchanged() throws IOException {
+			BufferedReader in = newReader(source);
+			try {
+				for (int i = 0; i < count; i++) {
+					writer.write(in.readLine());
+					writer.write(lineSeparator);
+				}
+			} finally {
+				in.close();
 			}
 		}
 	}
 
-	class State {
-		int state = 0; // 0=normal 1=inside_if 2=inside_else
-		boolean switchoff = false;
-		boolean working = false;
-		int removeFrom = -1;
-		int i = 0;
-		public boolean delete;
+	private BufferedReader newReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()), encoding));
 	}
 
-	private boolean processFile(String name) throws ParseException {
+	private boolean processFile(SourceFile file, Messages messages) throws ParseException {
 
-		File f = new File(name);
+		long started = System.nanoTime();
+		long copyNanos = 0;
+		boolean parsed = false;
+		File f = file.source;
 		long lastModified = f.lastModified();
-		File fnew = new File(name + ".new");
-		State state = new State();
+		long length = f.length();
+		boolean inPlace = file.isInPlace();
+		State[] states = new State[active.size()];
+		Set<String> symbols = referencedSymbols == null ? null : new HashSet<String>();
+		for (int k = 0; k < states.length; k++) {
+			State state = new State();
+			state.symbols = symbols;
+			state.messages = messages;
+			state.switches = active.get(k);
+			state.target = file.targets[k];
+			states[k] = state;
+		}
+		State state = states[0];
+		Input input = null;
 
 		try {
-			List<String> newContents = getFileLines(f);
-			List<String> originalContents = new ArrayList<String>(newContents.size());
-
-			for (int i = 0; i < newContents.size(); i++) {
-				originalContents.add(newContents.get(i));
+			ByteBuffer data = preScan.read(f);
+			if (data != null && !preScan.needsProcessing(data)) {
+				// Nothing can change, so skip parsing entirely
+				skipped.incrementAndGet();
+				if (file.memory != null) {
+					file.memory.add(new ProcessedSource(f, file.path, null, encoding));
+				} else if (!inPlace) {
+					for (State s : states) {
+						long copyStarted = System.nanoTime();
+						copyOutput(f, s.target, lastModified);
+						copyNanos += System.nanoTime() - copyStarted;
+					}
+				}
+				for (State s : states) {
+					s.done = true;
+				}
+				return true;
 			}
 
-			for (; state.i < newContents.size() && !state.delete; state.i++) {
-				String line = (String) newContents.get(state.i);
-
-				if (line == null) {
-					break;
-				}
-				
-				String lineStripped = stripSpaces(line);
-
-				if (state.working) {
-					if (lineStripped.equals("/*") || lineStripped.equals("*/")) {
-						newContents.remove(state.i--);
-					} else if (lineStripped.startsWith("*")) {
-						int idx = line.indexOf('*');
-						newContents.set(state.i, line.substring(0, idx) + line.substring(idx + 1).trim());
-					} else if (lineStripped.startsWith("//") && !lineStripped.startsWith("//#")) {
-						int idx = line.indexOf("/");
-						newContents.set(state.i, line.substring(0, idx) + line.substring(idx + 2).trim());
-					}
+			/*
+			 * The file is read and each line classified once. Every variant
+			 * then takes its own path through the same lines in turn, so they
+			 * are never far apart and only a few lines need be kept. A variant
+			 * that fails does not stop the others.
+			 */
+			parsed = true;
+			try {
+				ByteLines bytes = data == null ? null : new ByteLines(data, encoding);
+				input = new Input(f, bytes);
+				for (State s : states) {
+					s.in = input;
+					s.output = new Output(f, s.target, s.switches.tokenMatcher, bytes);
 				}
 
-				if (lineStripped.indexOf("//#") != -1) {
-					// Handle single line comment switches
-					if (lineStripped.startsWith("//#[")) {
-						if (!handleSingleLineComment(f, state, newContents, line, lineStripped)) {
-							return false;
-						}
-					} else if (lineStripped.startsWith("//#ifdef")) {
-						if (!handleIf(f, state, newContents, lineStripped)) {
-							return false;
-						}
-					} else if (lineStripped.startsWith("//#else")) {
-						if (!handleElse(f, state, newContents)) {
-							return false;
-						}
-					} else if (lineStripped.startsWith("//#endif")) {
-						if (!handleEndIf(f, state, newContents)) {
-							return false;
+				boolean running = true;
+				while (running) {
+					running = false;
+					int read = Integer.MAX_VALUE;
+					for (State s : states) {
+						state = s;
+						if (!s.finished) {
+							try {
+								s.failed = !step(f, s);
+							} catch (IOException | RuntimeException e) {
+								s.error(null, 0, e.getMessage());
+								s.failed = true;
+							}
+							s.finished |= s.failed;
+							running |= !s.finished;
 						}
-					} else if (lineStripped.startsWith("//#del")) {
-						if (!handleDel(f, state, lineStripped)) {
-							return false;
+						if (!s.failed) {
+							read = Math.min(read, s.inPos);
 						}
 					}
+					input.release(read);
+				}
+			} finally {
+				if (input != null) {
+					input.close();
 				}
 			}
 
-			if (state.delete) {
-				if (!f.delete()) {
-					printError(f, 0, "Failed to delete file " + f);
+			for (State s : states) {
+				state = s;
+				if (s.failed) {
+					continue;
 				}
-			} else {
-
-				if (state.state != 0) {
-					printError(f, newContents.size(), "'#endif' missing");
-					return false;
+				if (!s.delete && s.state != 0) {
+					s.error(f, s.size(), "'#endif' missing");
+					s.failed = true;
+					continue;
 				}
 
-				// Look for any tokens to replace
-				for (int i = 0; i < newContents.size(); i++) {
-					for (String token : tokens.keySet()) {
-						String value = tokens.get(token);
-						newContents.set(i, newContents.get(i).replace(token, value));
+				File fnew = s.target;
+				try {
+					if (s.delete) {
+						s.output.close();
+						if (fnew != null && (inPlace || fnew.exists())) {
+							Files.delete(fnew.toPath());
+						}
+						s.done = true;
+						continue;
 					}
-				}
 
-				// Determine if the file has changed at all
-				boolean filechanged = false;
-				for (int i = 0; i < newContents.size(); i++) {
-					if (!originalContents.get(i).equals(newContents.get(i))) {
-						filechanged = true;
-						break;
+					s.flushAll();
+					s.summary(f);
+
+					if (s.output.isChanged()) {
+						s.output.commit(keepLastModified && !onlyWriteChanged ? lastModified : -1);
+						if (file.memory != null) {
+							file.memory.add(new ProcessedSource(f, file.path, s.output.getContent(), encoding));
+						}
+					} else {
+						s.output.close();
+						if (file.memory != null) {
+							file.memory.add(new ProcessedSource(f, file.path, null, encoding));
+						} else if (!inPlace) {
+							long copyStarted = System.nanoTime();
+							copyOutput(f, fnew, lastModified);
+							copyNanos += System.nanoTime() - copyStarted;
+						}
+					}
+					s.done = true;
+				} catch (IOException ioe) {
+					s.error(f, 0, "Failed to " + (s.delete ? "delete" : "write") + " file " + fnew + ". "
+							+ ioe.getMessage());
+					if (s.delete) {
+						s.done = true;
 					}
 				}
+			}
 
-				if (!filechanged) {
-					return true;
+			return isDone(states);
+		} catch (Exception e) {
+			state.error(null, 0, e.getMessage());
+
+			return false;
+		} finally {
+			if (symbols != null) {
+				if (isDone(states)) {
+					referencedSymbols.put(f, symbols);
+				} else {
+					referencedSymbols.remove(f);
+				}
+			}
+			for (State s : states) {
+				if (!s.done) {
+					discard(f, s.target, inPlace, s.output);
+					if (file.memory != null) {
+						file.memory.add(new ProcessedSource(f, file.path, null, encoding));
+					}
 				}
+			}
+			if (statistics != null) {
+				record(f, inPlace, states, parsed, length, System.nanoTime() - started, copyNanos);
+			}
+		}
+	}
 
-				writeFileLines(newContents, fnew, lineSeparator);
+	private static boolean isDone(State[] states) {
+		for (State s : states) {
+			if (!s.done) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void record(File f, boolean inPlace, State[] states, boolean parsed, long length, long nanos,
+			long copyNanos) {
+		long replaceNanos = 0;
+		long writeNanos = copyNanos;
+		statistics.scanned.incrementAndGet();
+		statistics.bytesRead.addAndGet(length);
+		if (!parsed) {
+			statistics.skipped.incrementAndGet();
+		}
+		for (State s : states) {
+			if (s.output != null) {
+				replaceNanos += s.output.replaceNanos;
+				writeNanos += s.output.writeNanos;
+			}
+			statistics.linesRemoved.addAndGet(s.removed);
+			if (!s.done) {
+				continue;
+			}
+			boolean changed = s.output != null && s.output.isChanged();
+			if (s.delete) {
+				statistics.deleted.incrementAndGet();
+			} else if (changed) {
+				statistics.changed.incrementAndGet();
+			} else if (parsed) {
+				statistics.unchanged.incrementAndGet();
+			}
+			if (!s.delete && s.target != null && (changed || !inPlace)) {
+				statistics.bytesWritten.addAndGet((inPlace ? f : s.target).length());
+			}
+		}
+		statistics.replaceNanos.addAndGet(replaceNanos);
+		statistics.writeNanos.addAndGet(writeNanos);
+		statistics.parseNanos.addAndGet(Math.max(0, nanos - replaceNanos - writeNanos));
+		statistics.file(f, nanos);
+	}
 
-				File fbak = new File(name + ".bak");
+	/*
+	 * Process the line at the current index of the state, and move on to the
+	 * next.
+	 */
+	private boolean step(File f, State state) throws ParseException, IOException {
+		if (state.delete || !state.next()) {
+			state.finished = true;
+			return true;
+		}
+		SourceLine line = state.current;
 
-				fbak.delete();
-				f.renameTo(fbak);
+		if (state.working) {
+			switch (line.comment) {
+			case SourceLine.COMMENT_BOUNDARY:
+				state.remove(state.i--);
+				break;
+			case SourceLine.COMMENT_STAR: {
+				int idx = line.text.indexOf('*');
+				state.set(state.i, line.text.substring(0, idx) + line.text.substring(idx + 1).trim());
+				break;
+			}
+			case SourceLine.COMMENT_SLASHES: {
+				int idx = line.text.indexOf("/");
+				state.set(state.i, line.text.substring(0, idx) + line.text.substring(idx + 2).trim());
+				break;
+			}
+			default:
+				break;
+			}
+		}
 
-				File fcopy = new File(name);
+		boolean ok;
+		switch (line.directive) {
+		case SourceLine.SINGLE_LINE:
+			// Handle single line comment switches
+			ok = handleSingleLineComment(f, state, line.text);
+			break;
+		case SourceLine.IF:
+			ok = handleIfExpression(f, state, line.argument);
+			break;
+		case SourceLine.IFDEF:
+			ok = handleIf(f, state, line.argument);
+			break;
+		case SourceLine.ELSE:
+			ok = handleElse(f, state);
+			break;
+		case SourceLine.ENDIF:
+			ok = handleEndIf(f, state);
+			break;
+		case SourceLine.DEL:
+			ok = handleDel(f, state, line.argument);
+			break;
+		default:
+			ok = true;
+			break;
+		}
+		if (!ok) {
+			return false;
+		}
 
-				fnew.renameTo(fcopy);
-				fbak.delete();
+		state.flush();
+		state.i++;
+		return true;
+	}
 
-				if (keepLastModified) {
-					f.setLastModified(lastModified);
-				}
+	/*
+	 * Remove any partial output. When writing to a separate target, it is
+	 * left as an unprocessed copy of the source. When processing in place,
+	 * the original is never touched until the output is complete.
+	 */
+	private static void discard(File f, File fnew, boolean inPlace, Output output) {
+		try {
+			if (output != null) {
+				output.close();
+			}
+		} catch (IOException ioe) {
+		}
+		if (!inPlace && fnew != null) {
+			try {
+				copy(f, fnew);
+			} catch (IOException ioe) {
+				fnew.delete();
+			}
+		}
+	}
+
+	/**
+	 * Copy a file that needs no changes to a target, giving it the
+	 * modification time of the original if configured to. If only changed
+	 * results are written, a target that already has the same content is left
+	 * alone.
+	 * 
+	 * @param source       source file
+	 * @param target       target file
+	 * @param lastModified modification time of the source
+	 * @throws IOException on error
+	 */
+	void copyOutput(File source, File target, long lastModified) throws IOException {
+		if (onlyWriteChanged) {
+			if (!isSameContent(source.toPath(), target.toPath())) {
+				copy(source, target);
+			}
+		} else {
+			copy(source, target);
+			if (keepLastModified) {
+				target.setLastModified(lastModified);
 			}
+		}
+	}
 
-			return true;
-		} catch (Exception e) {
-			printError(null, 0, e.getMessage());
+	/*
+	 * Source files are small, so are just read whole once the sizes match.
+	 */
+	static boolean isSameContent(Path file, Path other) throws IOException {
+		return Files.isRegularFile(other) && Files.size(file) == Files.size(other)
+				&& Arrays.equals(Files.readAllBytes(file), Files.readAllBytes(other));
+	}
 
-			return false;
+	static void copy(File source, File target) throws IOException {
+		File dir = target.getParentFile();
+		if (dir != null && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Failed to create directory " + dir);
 		}
+		Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
 	}
 
-	private boolean handleDel(File f, State state, String lineStripped) throws ParseException {
-		String symbol = lineStripped.substring(6);
+	private boolean handleDel(File f, State state, String symbol) throws ParseException {
 		if (symbol.length() == 0) {
-			printError(f, state.i, "No symbol provide for #del statement");
+			state.error(f, state.i, "No symbol provide for #del statement");
 			return false;
 		}
-		if (vSwitchOn.contains(symbol)) {
+		if (state.symbols != null) {
+			state.symbols.add(symbol);
+		}
+		if (state.switches.symbols.isEnabled(symbol)) {
 			state.delete = true;
-			printMessage(f, state.i, "Will delete file " + f);
+			state.message(f, state.i, "Will delete file " + f);
 		}
 		return true;
 	}
 
-	protected boolean handleElse(File f, State state, List<String> v) throws ParseException {
+	protected boolean handleElse(File f, State state) throws ParseException, IOException {
 		if (state.state != 1) {
-			printError(f, state.i, "'#else' without '#ifdef'");
+			state.error(f, state.i, "'#else' without '#ifdef'");
 			return false;
 		}
 		state.state = 2;
 		if (state.working) {
 			if (state.switchoff) {
 				if (comment) {
-					if (v.get(state.i - 1).equals("")) {
-						v.add(state.i - 1, "*/");
+					if (state.get(state.i - 1).equals("")) {
+						state.add(state.i - 1, "*/");
 						state.i++;
 					} else {
-						v.add(state.i++, "*/");
+						state.add(state.i++, "*/");
 					}
 				} else {
-					removeMarkedLinesFrom(f, state, v);
+					removeMarkedLinesFrom(f, state);
 				}
 				state.switchoff = false;
 			} else {
 				if (comment) {
-					v.add(++state.i, "/*");
+					state.add(++state.i, "/*");
 				} else {
 					state.removeFrom = state.i;
 				}
@@ -448,115 +1996,149 @@ public class CodeSwitcher {
 		return true;
 	}
 
-	protected boolean handleIf(File f, State state, List<String> v, String lineStripped) throws ParseException {
+	protected boolean handleIf(File f, State state, String s) throws ParseException {
+		vSwitches.add(s);
+		if (state.symbols != null) {
+			state.symbols.add(s);
+		}
+		return handleIf(f, state, s, state.switches.symbols.get(s));
+	}
+
+	protected boolean handleIfExpression(File f, State state, String text) throws ParseException {
+		Expression expression = state.switches.expressions.get(text);
+		if (expression == null) {
+			Expression parsed = expressions.get(text);
+			if (parsed == null) {
+				try {
+					parsed = Expression.parse(text);
+				} catch (ParseException pe) {
+					state.error(f, state.i, pe.getMessage());
+					return false;
+				}
+				expressions.put(text, parsed);
+			}
+			expression = parsed.bind(state.switches.symbols);
+			state.switches.expressions.put(text, expression);
+		}
+		expression.collectSymbols(vSwitches);
+		if (state.symbols != null) {
+			expression.collectSymbols(state.symbols);
+		}
+		return handleIf(f, state, text, expression.evaluate(state.switches.symbols));
+	}
+
+	private boolean handleIf(File f, State state, String s, Boolean include) throws ParseException {
 		if (state.state != 0) {
-			printError(f, state.i, "'#ifdef' not allowed inside '#ifdef'");
+			state.error(f, state.i, "'#ifdef' not allowed inside '#ifdef'");
 			return false;
 		}
 		state.state = 1;
 		state.removeFrom = -1;
-		String s = lineStripped.substring(8);
-		if (vSwitchOn.indexOf(s) != -1) {
-			printMessage(f, state.i, "Including " + s);
+		if (Boolean.TRUE.equals(include)) {
+			state.included++;
+			if (debug) {
+				state.debug(f, state.i, "Including " + s);
+			}
 			state.working = true;
 			state.switchoff = false;
 			if (!comment) {
 				// If not commenting, removing the ifdef itself
-				v.remove(state.i--);
+				state.remove(state.i--);
+			}
+		} else if (Boolean.FALSE.equals(include)) {
+			state.excluded++;
+			if (debug) {
+				state.debug(f, state.i, "Excluding " + s);
 			}
-		} else if (vSwitchOff.indexOf(s) != -1) {
-			printMessage(f, state.i, "Excluding " + s);
 			state.working = true;
 			if (comment) {
-				v.add(++state.i, "/*");
+				state.add(++state.i, "/*");
 			} else {
 				state.removeFrom = state.i;
 			}
 			state.switchoff = true;
 		}
-		if (vSwitches.indexOf(s) == -1) {
-			vSwitches.add(s);
-		}
 		return true;
 	}
 
-	protected boolean handleEndIf(File f, State state, List<String> v) throws ParseException {
+	protected boolean handleEndIf(File f, State state) throws ParseException, IOException {
 		if (state.state == 0) {
-			printError(f, state.i, "'#endif' without '#ifdef'");
+			state.error(f, state.i, "'#endif' without '#ifdef'");
 			return false;
 		}
 		state.state = 0;
 		if (state.working && state.switchoff) {
-			if (v.get(state.i - 1).equals("")) {
+			if (state.get(state.i - 1).equals("")) {
 				if (comment) {
-					v.add(state.i - 1, "*/");
+					state.add(state.i - 1, "*/");
 				}
+				/*
+				 * When stripping, this moves past the '#endif', so the line
+				 * following it is removed as well. This has always been the
+				 * behaviour, so is kept for identical output.
+				 */
 				state.i++;
 			} else {
 				if (comment) {
-					v.add(state.i++, "*/");
+					state.add(state.i++, "*/");
 				}
 			}
-			removeMarkedLinesFrom(f, state, v);
+			removeMarkedLinesFrom(f, state);
 		}
 		else if (!comment) {
 			// If not commenting, removing the endif itself
 			state.removeFrom = state.i;
-			removeMarkedLinesFrom(f, state, v);
+			removeMarkedLinesFrom(f, state);
 		}
 		state.working = false;
 		state.switchoff = false;
 		return true;
 	}
 
-	protected boolean handleSingleLineComment(File f, State state, List<String> v, String line, String lineStripped)
-			throws ParseException {
+	protected boolean handleSingleLineComment(File f, State state, String line)
+			throws ParseException, IOException {
 		int idx = line.indexOf("[");
 		int eidx = line.indexOf(']');
 		if (idx == -1) {
-			printError(f, state.i, "unclosed simple switch");
+			state.error(f, state.i, "unclosed simple switch");
 			return false;
 		} else {
 			String symbol = line.substring(idx + 1, eidx);
-			if (vSwitchOn.contains(symbol)) {
-				v.set(state.i, line.substring(0, line.indexOf('/')) + line.substring(eidx + 1).trim());
-			} else if (vSwitchOff.contains(symbol)) {
+			if (state.symbols != null) {
+				state.symbols.add(symbol);
+			}
+			if (state.switches.symbols.isEnabled(symbol)) {
+				state.set(state.i, line.substring(0, line.indexOf('/')) + line.substring(eidx + 1).trim());
+			} else if (state.switches.symbols.isDisabled(symbol)) {
 				state.removeFrom = state.i;
-				removeMarkedLinesFrom(f, state, v);
+				removeMarkedLinesFrom(f, state);
 			}
 		}
 		return true;
 	}
 
-	private void removeMarkedLinesFrom(File f, State state, List<String> v) {
+	private void removeMarkedLinesFrom(File f, State state) throws IOException, ParseException {
 		if (state.removeFrom != -1) {
-			printMessage(f, state.removeFrom, "Removing " + (state.i - state.removeFrom) + " lines");
-			for(int i = state.removeFrom; i <= state.i; i++) {
-				printMessage(f, state.removeFrom, "Removed '" + v.remove(state.removeFrom) + "'");
+			if (debug) {
+				state.debug(f, state.removeFrom, "Removing " + (state.i - state.removeFrom) + " lines");
 			}
-			state.i = state.removeFrom - 1;
-			state.removeFrom = -1;
-		}
-	}
-
-	static List<String> getFileLines(File f) throws IOException {
-		LineNumberReader read = null;
-		List<String> v = new ArrayList<String>();
-		try {
-			read = new LineNumberReader(new FileReader(f));
-			for (;;) {
-				String line = read.readLine();
-				if (line == null) {
-					break;
+			if (!state.read(state.i)) {
+				throw new IOException("Unexpected end of file " + f + ".");
+			}
+			List<String> removed = state.lines.subList(state.removeFrom - state.base, state.i + 1 - state.base);
+			if (debug) {
+				for (String line : removed) {
+					state.debug(f, state.removeFrom, "Removed '" + line + "'");
 				}
-				v.add(line);
 			}
-		} finally {
-			if (read != null) {
-				read.close();
+			if (!removed.isEmpty()) {
+				state.removed += removed.size();
+				state.edited = true;
+				removed.clear();
 			}
+			state.i = state.removeFrom - 1;
+			state.removeFrom = -1;
 		}
-		return v;
 	}
 
 	static String trimBoth(String text) {
@@ -570,36 +2152,92 @@ public class CodeSwitcher {
 		return i < s ? text.substring(i) : text;
 	}
 
-	static String stripSpaces(String text) {
-		StringBuffer buf = new StringBuffer();
-		int s = text.length();
-		char ch;
-		for (int i = 0; i < s; i++) {
-			ch = text.charAt(i);
-			if (!Character.isWhitespace(ch)) {
-				buf.append(ch);
+	/**
+	 * Match a value against text starting at a position, ignoring any white
+	 * space in the text.
+	 * 
+	 * @param text  text
+	 * @param from  position in text to start at
+	 * @param value value to match
+	 * @return position in text after the match, or -1 if it does not match
+	 */
+	static int matchIgnoringSpaces(CharSequence text, int from, String value) {
+		int i = from;
+		int len = text.length();
+		for (int j = 0; j < value.length(); j++) {
+			while (i < len && Character.isWhitespace(text.charAt(i))) {
+				i++;
 			}
+			if (i == len || text.charAt(i) != value.charAt(j)) {
+				return -1;
+			}
+			i++;
 		}
-		return buf.toString();
+		return i;
 	}
 
-	static void writeFileLines(List<String> v, File f, String ls) throws IOException {
+	/**
+	 * Match a directive keyword that is not followed by any other letter, such
+	 * as <code>if</code> in <code>//#if A &amp;&amp; B</code>. White space is
+	 * allowed before the keyword, but not within it.
+	 * 
+	 * @param text    text
+	 * @param keyword keyword
+	 * @return position in text after the keyword, or -1 if it does not match
+	 */
+	static int matchKeyword(CharSequence text, String keyword) {
+		int i = matchIgnoringSpaces(text, 0, "//#");
+		if (i == -1) {
+			return -1;
+		}
+		while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+			i++;
+		}
+		for (int j = 0; j < keyword.length(); j++, i++) {
+			if (i == text.length() || text.charAt(i) != keyword.charAt(j)) {
+				return -1;
+			}
+		}
+		return i < text.length() && Character.isLetterOrDigit(text.charAt(i)) ? -1 : i;
+	}
 
-		FileWriter write = null;
-		try {
-			write = new FileWriter(f);
-			for (String line : v) {
-				write.write(line);
-				write.write(ls);
+	static boolean startsWithIgnoringSpaces(CharSequence text, String value) {
+		return matchIgnoringSpaces(text, 0, value) != -1;
+	}
+
+	static boolean equalsIgnoringSpaces(CharSequence text, String value) {
+		int i = matchIgnoringSpaces(text, 0, value);
+		if (i == -1) {
+			return false;
+		}
+		for (int len = text.length(); i < len; i++) {
+			if (!Character.isWhitespace(text.charAt(i))) {
+				return false;
 			}
+		}
+		return true;
+	}
 
-			write.flush();
-		} finally {
-			if (write != null) {
-				write.close();
+	static boolean containsIgnoringSpaces(CharSequence text, String value) {
+		for (int i = 0, len = text.length(); i < len; i++) {
+			if (!Character.isWhitespace(text.charAt(i)) && matchIgnoringSpaces(text, i, value) != -1) {
+				return true;
+			}
+		}
+		return false;
+	}
 
+	static String stripSpaces(String text) {
+		int s = text.length();
+		StringBuilder buf = new StringBuilder(s);
+		char ch;
+		for (int i = 0; i < s; i++) {
+			ch = text.charAt(i);
+			if (!Character.isWhitespace(ch)) {
+				buf.append(ch);
 			}
 		}
+		return buf.toString();
 	}
 
 	/**
@@ -641,6 +2279,22 @@ public class CodeSwitcher {
 		}
 	}
 
+	/**
+	 * Print a detailed message, only called when {@link #isDebug()} is set.
+	 * May be overridden to integrate with logging frameworks.
+	 * 
+	 * @param f file message occured on
+	 * @param line line number
+	 * @param message message
+	 */
+	protected void printDebug(File f, int line, String message) {
+		if (f == null) {
+			System.out.println("DEBUG: " + message);
+		} else {
+			System.out.println("DEBUG: " + f.getName() + "[" + line + "] " + message);
+		}
+	}
+
 	/**
 	 * Command line entry point,
 	 * 
@@ -673,6 +2327,7 @@ public class CodeSwitcher {
 		}
 
 		boolean path = false;
+		boolean watch = false;
 
 		for (int i = 0; i < a.length; i++) {
 			String p = a[i];
@@ -680,6 +2335,12 @@ public class CodeSwitcher {
 				String opt = p.substring(1);
 				if (opt.equalsIgnoreCase("strip")) {
 					s.comment = false;
+				} else if (opt.equalsIgnoreCase("debug")) {
+					s.debug = true;
+				} else if (opt.toLowerCase().startsWith("encoding=")) {
+					s.encoding = Charset.forName(opt.substring(9));
+				} else if (opt.equalsIgnoreCase("watch")) {
+					watch = true;
 				}
 			} else if (p.startsWith("+")) {
 				s.enableSymbol(p.substring(1));
@@ -699,6 +2360,20 @@ public class CodeSwitcher {
 				s.printSwitches();
 			} else {
 				s.process();
+				if (watch) {
+					try {
+						SourceWatcher watcher = new SourceWatcher(s, s.getTrees());
+						try {
+							watcher.watch();
+						} finally {
+							watcher.close();
+						}
+					} catch (IOException e) {
+						s.printError(null, 0, "Failed to watch for changes. " + e.getMessage());
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
 			}
 		}
 	}
@@ -713,6 +2388,7 @@ public class CodeSwitcher {
 			+ "Use -MODE to switch off the things labeld MODE\n" + "Path: Any number of path or files may be\n"
 			+ "specified. Use . for the current directory\n" + "(including sub-directories).\n"
 			+ "Example: java CodeSwitcher +JAVA2 .\n" + "This example switches on code labeled JAVA2\n"
-			+ "in all *.java files in the current directory\n" + "and all subdirectories.\n");
+			+ "in all *.java files in the current directory\n" + "and all subdirectories.\n"
+			+ "Use /watch to keep running and process files\n" + "again as they change.\n");
 	}
 }
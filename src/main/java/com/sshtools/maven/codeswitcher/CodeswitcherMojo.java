@@ -17,19 +17,46 @@ package com.sshtools.maven.codeswitcher;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.Scanner;
+import org.sonatype.plexus.build.incremental.BuildContext;
 
 @Mojo( name = "pre-process", threadSafe = true)
 public class CodeswitcherMojo extends AbstractMojo {
+
+	/**
+	 * The name of the file the cache key is written to in each output
+	 * directory.
+	 */
+	static final String CACHE_KEY = ".codeswitcher-key";
+
 	/**
 	 * The temporary directory to write the pre-processed files to when
 	 * runOnCopy is set to true (the default).
@@ -76,6 +103,13 @@ public class CodeswitcherMojo extends AbstractMojo {
 	@Parameter( property = "codeswitch.lineSeparator", defaultValue = "" )
 	private String lineSeparator;
 
+	/**
+	 * The character encoding of the source. If not set, the platform encoding
+	 * is used.
+	 */
+	@Parameter( property = "codeswitch.encoding", defaultValue = "${project.build.sourceEncoding}" )
+	private String encoding;
+
 	/**
 	 * Special token that gets replaced with the current timestamp
 	 */
@@ -88,87 +122,263 @@ public class CodeswitcherMojo extends AbstractMojo {
 	@Parameter( property = "codeswitch.tokens", defaultValue = "" )
 	private Token[] tokens;
 
+	/**
+	 * The fully qualified name of a class to generate holding the value of
+	 * the timestamp token, and of any tokens marked as constant. Every
+	 * occurrence of those tokens is replaced with a reference to the constant
+	 * instead of the value, so each build only changes this one class. It is
+	 * written to <code>generatedSourcesDirectory</code>, which is added as a
+	 * compile source root.
+	 */
+	@Parameter( property = "codeswitch.constantsClass" )
+	private String constantsClass;
+
+	/**
+	 * The directory the constants class is written to.
+	 */
+	@Parameter( property = "codeswitch.generatedSourcesDirectory", defaultValue = "target/generated-sources/codeswitcher" )
+	private String generatedSourcesDirectory = "target/generated-sources/codeswitcher";
+
+	/**
+	 * When set, and <code>workOnCopy</code> is also set, a manifest of the
+	 * state of each source file is kept between builds. Only files whose
+	 * size, modification time or content, or the switch configuration, have
+	 * changed since the last build are copied and processed again. Outputs
+	 * whose sources no longer exist are removed. The manifest also records
+	 * the symbols each file refers to, so when only enabled or disabled
+	 * symbols change, just the files that refer to them are processed again.
+	 */
+	@Parameter( property = "codeswitch.incremental", defaultValue = "false" )
+	private boolean incremental;
+
+	/**
+	 * When set, each output is given the modification time of its source.
+	 * Ignored when <code>onlyWriteChanged</code> is set.
+	 */
+	@Parameter( property = "codeswitch.keepLastModified", defaultValue = "true" )
+	private boolean keepLastModified = true;
+
+	/**
+	 * When set, an output is only written when its content differs from the
+	 * output that is already there, and is then given the current time.
+	 * Otherwise the existing output and its modification time are left alone,
+	 * so the compiler only recompiles the classes whose source really
+	 * changed.
+	 */
+	@Parameter( property = "codeswitch.onlyWriteChanged", defaultValue = "false" )
+	private boolean onlyWriteChanged;
+
+	/**
+	 * When set, and <code>workOnCopy</code> is also set, a key is made from
+	 * the content of every source file, the configuration and the version of
+	 * the plugin, and is written to a file named <code>.codeswitcher-key</code>
+	 * in each output directory once it has been processed. If the outputs of
+	 * a source directory already hold the same key, such as when they have
+	 * been restored by a build cache, it is not processed at all. Otherwise,
+	 * any file in an output directory whose source does not exist is removed,
+	 * so the outputs only depend on the key. Output directories must then not
+	 * be used for anything else. The value of the timestamp token is not part
+	 * of the key, so use <code>constantsClass</code> to keep it out of the
+	 * outputs.
+	 */
+	@Parameter( property = "codeswitch.cacheKey", defaultValue = "false" )
+	private boolean cacheKey;
+
+	/**
+	 * The location of the manifest used for incremental processing.
+	 */
+	@Parameter( property = "codeswitch.manifest", defaultValue = "target/codeswitcher/manifest.properties" )
+	private String manifest = "target/codeswitcher/manifest.properties";
+
+	/**
+	 * The number of threads used to process files. Zero or less means one
+	 * thread per available processor. Messages for each file are reported
+	 * together, in a stable order, once processing is complete.
+	 */
+	@Parameter( property = "codeswitch.threads", defaultValue = "1" )
+	private int threads = 1;
+
+	/**
+	 * When set, every execution in the same JVM with this set, such as those
+	 * of the modules of a parallel reactor build (<code>-T</code>), shares
+	 * one engine. Executions with the same symbols, tokens and variants share
+	 * their compiled form, and the source of all of them is walked and
+	 * processed on one pool of <code>threads</code> threads, or one per available processor if
+	 * <code>threads</code> is one or less. A large module then no longer
+	 * holds up the build while the threads of smaller modules are idle.
+	 */
+	@Parameter( property = "codeswitch.sharedEngine", defaultValue = "false" )
+	private boolean sharedEngine;
+
+	/**
+	 * Variants of the source to produce. Each file is parsed once, and a
+	 * result written for each variant to its own output directory, using the
+	 * symbols and tokens of the variant in addition to those above.
+	 * <code>workOnCopy</code> must be <code>true</code>. If
+	 * <code>changeBuildSourceDirectory</code> is set, the first variant is
+	 * compiled.
+	 */
+	@Parameter
+	private Variant[] variants;
+
+	/**
+	 * When set to <code>json</code> or <code>csv</code>, a report of the time
+	 * taken by each phase, the number of files and bytes processed and the
+	 * slowest files is written to <code>reportDirectory</code>. A summary is
+	 * always logged.
+	 */
+	@Parameter( property = "codeswitch.report", defaultValue = "" )
+	private String report;
+
+	/**
+	 * The directory the report is written to.
+	 */
+	@Parameter( property = "codeswitch.reportDirectory", defaultValue = "target/codeswitcher" )
+	private String reportDirectory = "target/codeswitcher";
+
+	/**
+	 * The number of slowest files to include in the report.
+	 */
+	@Parameter( property = "codeswitch.reportSlowest", defaultValue = "10" )
+	private int reportSlowest = 10;
+
+	/**
+	 * Patterns of the files in each source root to process, such as
+	 * <code>**&#47;*.java</code>, which is the default.
+	 */
+	@Parameter( property = "codeswitch.includes" )
+	private String[] includes;
+
+	/**
+	 * Patterns of the files in each source root not to process, such as
+	 * generated packages that never contain directives. The default excludes,
+	 * such as version control files, always apply. When working on a copy,
+	 * these are copied as they are.
+	 */
+	@Parameter( property = "codeswitch.excludes" )
+	private String[] excludes;
+
+	/**
+	 * When set, every compile source root of the project is processed, such
+	 * as those generated by annotation processors or other plugins, not just
+	 * the source directory. Each is written to a directory next to
+	 * <code>temporaryDirectory</code>, named after the path of the root.
+	 */
+	@Parameter( property = "codeswitch.compileSourceRoots", defaultValue = "false" )
+	private boolean compileSourceRoots;
+
+	/**
+	 * When set, the test source directory and every other test compile source
+	 * root of the project are processed too.
+	 */
+	@Parameter( property = "codeswitch.testSourceRoots", defaultValue = "false" )
+	private boolean testSourceRoots;
+
+	/**
+	 * The directory to write the pre-processed test source to when
+	 * <code>testSourceRoots</code> is set.
+	 */
+	@Parameter( property = "codeswitch.testTemporaryDirectory", defaultValue = "target/preprocessed-test" )
+	private String testTemporaryDirectory = "target/preprocessed-test";
+
+	/**
+	 * Other directories of source to process. The files of all roots are
+	 * processed together, on the same threads. If
+	 * <code>changeBuildSourceDirectory</code> is set, the output of each root
+	 * is added as a compile source root, or a test compile source root.
+	 */
+	@Parameter
+	private SourceRoot[] sourceRoots;
+
+	private Statistics statistics;
+	private ConstantsClass constants;
+
+	@Parameter( defaultValue = "${plugin.version}", readonly = true )
+	private String pluginVersion;
+
 	@Parameter(required = true, readonly = true, property = "project")
 	protected MavenProject project;
 
-	public void execute() throws MojoExecutionException {
-		// Copy original source if configured to do so
-		String pathToWorkOn = project.getBuild().getSourceDirectory();
+	/**
+	 * When the build is run incrementally by an IDE, only the files it reports
+	 * as changed or deleted are processed, and only the outputs touched are
+	 * refreshed.
+	 */
+	@Component
+	protected BuildContext buildContext;
 
-		File targetDir = new File(project.getBasedir(), temporaryDirectory);
+	public void execute() throws MojoExecutionException {
+		long started = System.nanoTime();
+		statistics = new Statistics(reportSlowest);
+		if (!getVariantNames().isEmpty() && !workOnCopy) {
+			throw new MojoExecutionException("Variants may only be used when workOnCopy is set.");
+		}
 
-		File sourceDirectory = new File(project.getBuild().getSourceDirectory());
-		if (!sourceDirectory.exists()) {
+		// Copy original source if configured to do so
+		List<Root> roots = getRoots();
+		if (roots.isEmpty()) {
 			getLog().warn("No or missing source directory to pre-process.");
 		} else {
-			if (workOnCopy) {
-				copySource(sourceDirectory, targetDir);
-				pathToWorkOn = targetDir.getAbsolutePath();
+			for (Root root : roots) {
+				getLog().info("Pre-proccessing to " + root.targetDirs[0].getAbsolutePath());
+			}
+			if (encoding == null || encoding.length() == 0) {
+				getLog().warn("File encoding has not been set, using platform encoding " + Charset.defaultCharset()
+						+ ", i.e. build is platform dependent!");
 			}
-			getLog().info("Pre-proccessing to " + pathToWorkOn);
-
-			// Create switch, capture errors and messages and put them in the
-			// maven
-			// log
-			CodeSwitcher switcher = new CodeSwitcher() {
-				@Override
-				protected void printError(File file, int line, String message) throws ParseException {
-					if (file == null) {
-						getLog().error(message);
-					} else {
-						getLog().error(file.getName() + "[" + line + "] " + message);
-					}
-					if (isFailOnError()) {
-						throw new ParseException("Failed to codeswitch.", 0);
-					}
-				}
 
-				@Override
-				protected void printMessage(File file, int line, String message) {
-					if (file == null) {
-						getLog().info(message);
-					} else {
-						getLog().info(file.getName() + "[" + line + "] " + message);
-					}
-				}
-			};
+			Map<String, String> t = getTokenValues();
+			CodeSwitcher switcher = newSwitcher(t);
+			writeConstants(switcher.getLineSeparator());
 
-			// Line separators
-			if ("cr".equalsIgnoreCase(lineSeparator)) {
-				switcher.setLineSeparator("\r");
-			} else if ("crlf".equalsIgnoreCase(lineSeparator)) {
-				switcher.setLineSeparator("\r\n");
-			} else if ("lf".equalsIgnoreCase(lineSeparator)) {
-				switcher.setLineSeparator("\n");
+			// Directories to process. The files of every root are processed
+			// together
+			long discoveryStarted = System.nanoTime();
+			Map<String, String> symbolStates = getSymbolStates();
+			String baseConfigurationHash = getConfigurationHash(t);
+			String configurationHash = SourceManifest
+					.hash((baseConfigurationHash + symbolStates).getBytes(StandardCharsets.UTF_8));
+			switcher.setRecordSymbols(workOnCopy && incremental);
+			Map<Root, SourceManifest> newManifests = new LinkedHashMap<Root, SourceManifest>();
+			Map<Root, String> newKeys = new LinkedHashMap<Root, String>();
+			List<File> touched = new ArrayList<File>();
+			if (workOnCopy && cacheKey && timestampToken != null && timestampToken.length() > 0
+					&& constants == null) {
+				getLog().warn("The timestamp token is not part of the cache key, outputs restored from a cache will "
+						+ "hold the timestamp of the build that made them. Set constantsClass to avoid this.");
 			}
-
-			// Options
-			Map<String, String> t = new HashMap<String, String>();
-			if (tokens != null) {
-				for (Token token : tokens) {
-					t.put(token.key, token.value);
+			for (Root root : roots) {
+				if (buildContext.isIncremental() && configurationHash.equals(buildContext.getValue(root.getKey()))
+						&& allExist(root.targetDirs)) {
+					touched.addAll(addDelta(switcher, root.directory, workOnCopy ? root.targetDirs : null));
+					continue;
 				}
-			}
-			if (timestampToken != null) {
-				t.put(timestampToken, System.currentTimeMillis() + "L");
-			}
-			switcher.setTokens(t);
-			switcher.setComment(comment);
-
-			// Configure symbols
-			if (enable != null) {
-				for (String symbol : enable) {
-					switcher.enableSymbol(symbol);
+				if (workOnCopy && cacheKey) {
+					Set<String> paths = new HashSet<String>();
+					String key = getCacheKey(switcher, root, configurationHash, paths);
+					if (hasCacheKey(root, key)) {
+						getLog().info("Output of " + root.directory + " is up to date with key " + key + ".");
+						continue;
+					}
+					// Whatever else is run, the outputs must only depend on the key
+					removeStaleOutputs(root, paths);
+					newKeys.put(root, key);
 				}
-			}
-			if (disable != null) {
-				for (String symbol : disable) {
-					switcher.disableSymbol(symbol);
+				if (workOnCopy && incremental) {
+					newManifests.put(root, copyChangedSource(switcher, root.directory, root.targetDirs,
+							root.manifest, new SourceManifest(configurationHash, baseConfigurationHash, symbolStates)));
+				} else if (workOnCopy) {
+					// Walked as it is processed
+					buildContext.removeMessages(root.directory);
+					switcher.addTree(root.directory, root.targetDirs);
+				} else {
+					buildContext.removeMessages(root.directory);
+					switcher.addDir(root.directory.getAbsolutePath());
 				}
+				touched.addAll(Arrays.asList(root.targetDirs));
 			}
-
-			// Directory to process
-			switcher.addDir(pathToWorkOn);
+			// Trees that are walked as they are processed add their own time
+			statistics.discoveryNanos.addAndGet(System.nanoTime() - discoveryStarted - statistics.copyNanos.get());
 
 			// Start processing
 			try {
@@ -177,6 +387,28 @@ public class CodeswitcherMojo extends AbstractMojo {
 				throw new MojoExecutionException("Failed to process file.", e);
 			}
 
+			// Only record the new state once processing has succeeded
+			for (Map.Entry<Root, SourceManifest> entry : newManifests.entrySet()) {
+				File manifestFile = entry.getKey().manifest;
+				recordSymbols(switcher, entry.getKey().directory, entry.getValue());
+				try {
+					entry.getValue().save(manifestFile);
+				} catch (IOException e) {
+					throw new MojoExecutionException("Failed to write manifest " + manifestFile + ".", e);
+				}
+			}
+			for (Map.Entry<Root, String> entry : newKeys.entrySet()) {
+				writeCacheKey(entry.getKey(), entry.getValue());
+			}
+			for (Root root : roots) {
+				buildContext.setValue(root.getKey(), configurationHash);
+			}
+
+			// Let the IDE know what has changed
+			for (File output : touched) {
+				buildContext.refresh(output);
+			}
+
 			// Change the project source directory to the temporary directory
 			// for
 			// compilation
@@ -189,21 +421,791 @@ public class CodeswitcherMojo extends AbstractMojo {
 				/* TODO this make eclipse update the source directories incorrectly, need to find a way to exclude from
 				 * this 
 				 */
-				for(Object key : getPluginContext().keySet()) {
-					getLog().info("Key " + key + " = " + getPluginContext().get(key));
+				if (getLog().isDebugEnabled()) {
+					for(Object key : getPluginContext().keySet()) {
+						getLog().debug("Key " + key + " = " + getPluginContext().get(key));
+					}
 				}
 				
-				project.getCompileSourceRoots().remove(project.getBuild().getSourceDirectory());
-				project.addCompileSourceRoot(pathToWorkOn);
+				for (Root root : roots) {
+					String output = root.targetDirs[0].getAbsolutePath();
+					if (root.test) {
+						project.getTestCompileSourceRoots().remove(root.sourceRoot);
+						project.addTestCompileSourceRoot(output);
+					} else {
+						project.getCompileSourceRoots().remove(root.sourceRoot);
+						project.addCompileSourceRoot(output);
+					}
+				}
+			}
+
+			statistics.totalNanos.set(System.nanoTime() - started);
+			getLog().info(statistics.getSummary());
+			writeReport();
+
+			List<SourceTree> trees = new ArrayList<SourceTree>();
+			for (Root root : roots) {
+				trees.add(workOnCopy ? new SourceTree(root.directory, root.targetDirs)
+						: new SourceTree(root.directory, root.directory));
 			}
+			processed(switcher, trees);
 		}
 	}
 
-	private void copySource(File sourceDirectory, File targetDirectory) throws MojoExecutionException {
+	/**
+	 * Called once all source has been processed, with the switcher as it was
+	 * configured and the directories it processed.
+	 *
+	 * @param switcher switcher
+	 * @param trees    directories of source and where they were written
+	 * @throws MojoExecutionException on error
+	 */
+	void processed(CodeSwitcher switcher, List<SourceTree> trees) throws MojoExecutionException {
+	}
+
+	/**
+	 * Create a switcher configured with the symbols, tokens and variants of
+	 * the project, that reports errors and messages in the Maven log.
+	 *
+	 * @param tokens tokens, including the timestamp token
+	 * @return switcher
+	 * @throws MojoExecutionException on error
+	 */
+	CodeSwitcher newSwitcher(Map<String, String> tokens) throws MojoExecutionException {
+		// Create switch, capture errors and messages and put them in the
+		// maven
+		// log
+		CodeSwitcher switcher = new CodeSwitcher() {
+			@Override
+			protected void printError(File file, int line, String message) throws ParseException {
+				if (file == null) {
+					getLog().error(message);
+				} else {
+					getLog().error(file.getName() + "[" + line + "] " + message);
+					if (buildContext.isIncremental()) {
+						buildContext.addMessage(file, line, 0, message, isFailOnError()
+								? BuildContext.SEVERITY_ERROR : BuildContext.SEVERITY_WARNING, null);
+					}
+				}
+				if (isFailOnError()) {
+					throw new ParseException("Failed to codeswitch.", 0);
+				}
+			}
+
+			@Override
+			protected void printMessage(File file, int line, String message) {
+				if (file == null) {
+					getLog().info(message);
+				} else {
+					getLog().info(file.getName() + "[" + line + "] " + message);
+				}
+			}
+
+			@Override
+			protected void printDebug(File file, int line, String message) {
+				if (file == null) {
+					getLog().debug(message);
+				} else {
+					getLog().debug(file.getName() + "[" + line + "] " + message);
+				}
+			}
+		};
+		switcher.setDebug(getLog().isDebugEnabled());
+		switcher.setStatistics(statistics);
+
+		// Line separators
+		if ("cr".equalsIgnoreCase(lineSeparator)) {
+			switcher.setLineSeparator("\r");
+		} else if ("crlf".equalsIgnoreCase(lineSeparator)) {
+			switcher.setLineSeparator("\r\n");
+		} else if ("lf".equalsIgnoreCase(lineSeparator)) {
+			switcher.setLineSeparator("\n");
+		}
+
+		// Options
+		switcher.setTokens(tokens);
+		switcher.setComment(comment);
+		switcher.setKeepLastModified(keepLastModified);
+		switcher.setOnlyWriteChanged(onlyWriteChanged);
+		switcher.setEncoding(getEncoding());
+		switcher.setThreads(threads);
+		switcher.setShared(sharedEngine);
+		switcher.setIncludes(includes);
+		switcher.setExcludes(excludes);
+
+		// Configure symbols
+		if (enable != null) {
+			for (String symbol : enable) {
+				switcher.enableSymbol(symbol);
+			}
+		}
+		if (disable != null) {
+			for (String symbol : disable) {
+				switcher.disableSymbol(symbol);
+			}
+		}
+		if (variants != null) {
+			for (Variant variant : variants) {
+				switcher.addVariant(variant.name, symbolList(variant.enable), symbolList(variant.disable),
+						tokenMap(variant.tokens));
+			}
+		}
+		return switcher;
+	}
+
+	/**
+	 * Get the tokens to replace, including the timestamp token, which is given
+	 * the current time. If there is a constants class, the tokens that go in
+	 * it are replaced with references to their constants, which are then
+	 * written by {@link #writeConstants(String)}.
+	 *
+	 * @return tokens
+	 * @throws MojoExecutionException on error
+	 */
+	Map<String, String> getTokenValues() throws MojoExecutionException {
+		constants = null;
+		if (constantsClass != null && constantsClass.length() > 0) {
+			if (!ConstantsClass.isValidName(constantsClass)) {
+				throw new MojoExecutionException("'" + constantsClass + "' is not a valid class name.");
+			}
+			constants = new ConstantsClass(constantsClass);
+		}
+		Map<String, String> t = new HashMap<String, String>();
+		if (tokens != null) {
+			for (Token token : tokens) {
+				t.put(token.key, token.constant && constants != null ? constant(token.key, token.value, token.type)
+						: token.value);
+			}
+		}
+		if (timestampToken != null) {
+			String value = System.currentTimeMillis() + "L";
+			t.put(timestampToken, constants == null || timestampToken.length() == 0 ? value
+					: constant(timestampToken, value, "long"));
+		}
+		return t;
+	}
+
+	private String constant(String key, String value, String type) throws MojoExecutionException {
+		String reference = constants.add(key, value == null ? "" : value, type);
+		if (reference == null) {
+			throw new MojoExecutionException("The type of the constant for token '" + key
+					+ "' cannot be inferred from its value, so must be set.");
+		}
+		return reference;
+	}
+
+	/**
+	 * Get the constants class made by {@link #getTokenValues()}.
+	 *
+	 * @return constants class, or <code>null</code> if there is none
+	 */
+	ConstantsClass getConstants() {
+		return constants;
+	}
+
+	/**
+	 * Write the constants class, if there is one, and add the directory it is
+	 * in as a compile source root. It is only written if its content has
+	 * changed.
+	 *
+	 * @param lineSeparator line separator
+	 * @return constants class source, or <code>null</code> if there is none
+	 * @throws MojoExecutionException on error
+	 */
+	File writeConstants(String lineSeparator) throws MojoExecutionException {
+		if (constants == null) {
+			return null;
+		}
+		File directory = resolve(generatedSourcesDirectory);
+		File file = new File(directory, constants.getPath());
 		try {
-			FileUtils.copyDirectoryStructure(sourceDirectory, targetDirectory);
+			byte[] content = constants.getSource(lineSeparator).getBytes(getEncoding());
+			if (!file.isFile() || !Arrays.equals(content, Files.readAllBytes(file.toPath()))) {
+				File dir = file.getParentFile();
+				if (!dir.mkdirs() && !dir.isDirectory()) {
+					throw new IOException("Failed to create directory " + dir + ".");
+				}
+				Files.write(file.toPath(), content);
+				getLog().info("Wrote constants to " + file);
+			}
 		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to write constants class " + file + ".", e);
+		}
+		if (!project.getCompileSourceRoots().contains(directory.getAbsolutePath())) {
+			project.addCompileSourceRoot(directory.getAbsolutePath());
+		}
+		buildContext.refresh(file);
+		return file;
+	}
+
+	/**
+	 * Get the names of the variants, in the order they are configured.
+	 *
+	 * @return names, empty if there are no variants
+	 * @throws MojoExecutionException if a variant has no name, or two have the
+	 *             same name
+	 */
+	List<String> getVariantNames() throws MojoExecutionException {
+		List<String> names = new ArrayList<String>();
+		if (variants != null) {
+			for (Variant variant : variants) {
+				if (variant.name == null || variant.name.length() == 0) {
+					throw new MojoExecutionException("Every variant must have a name.");
+				}
+				if (names.contains(variant.name)) {
+					throw new MojoExecutionException("There is more than one variant named '" + variant.name + "'.");
+				}
+				names.add(variant.name);
+			}
+		}
+		return names;
+	}
+
+	/*
+	 * The source directory, and any other roots that are configured, each
+	 * mapped to its own output directories.
+	 */
+	List<Root> getRoots() throws MojoExecutionException {
+		List<Root> roots = new ArrayList<Root>();
+		Set<File> used = new HashSet<File>();
+		File targetDir = resolve(temporaryDirectory);
+		File testTargetDir = resolve(testTemporaryDirectory);
+
+		String sourceDirectory = project.getBuild().getSourceDirectory();
+		addRoot(roots, used, sourceDirectory, new File(sourceDirectory), targetDir, false);
+		if (compileSourceRoots) {
+			for (String root : project.getCompileSourceRoots()) {
+				addRoot(roots, used, root, new File(root), targetDir, false);
+			}
+		}
+		if (testSourceRoots) {
+			String testSourceDirectory = project.getBuild().getTestSourceDirectory();
+			addRoot(roots, used, testSourceDirectory, new File(testSourceDirectory), testTargetDir, true);
+			for (String root : project.getTestCompileSourceRoots()) {
+				addRoot(roots, used, root, new File(root), testTargetDir, true);
+			}
+		}
+		if (sourceRoots != null) {
+			for (SourceRoot root : sourceRoots) {
+				if (root.directory == null || root.directory.length() == 0) {
+					throw new MojoExecutionException("Every source root must have a directory.");
+				}
+				File outputDirectory = root.outputDirectory == null || root.outputDirectory.length() == 0
+						? (root.test ? testTargetDir : targetDir)
+						: resolve(root.outputDirectory);
+				addRoot(roots, used, null, resolve(root.directory), outputDirectory, root.test);
+			}
+		}
+		return roots;
+	}
+
+	/*
+	 * A root is written to the output directory it is given, unless another
+	 * root already is. It is then written next to it using the path of the
+	 * root, so 'target/generated-sources/annotations' would be written to
+	 * 'target/preprocessed-target-generated-sources-annotations'. Each has its
+	 * own manifest. Variant directories are used as they are configured, so
+	 * two that resolve to the same directory are an error.
+	 */
+	private void addRoot(List<Root> roots, Set<File> used, String sourceRoot, File directory, File outputDirectory,
+			boolean test) throws MojoExecutionException {
+		directory = directory.getAbsoluteFile();
+		if (!directory.isDirectory() || used.contains(directory)) {
+			return;
+		}
+		File output = outputDirectory.getAbsoluteFile();
+		if (used.contains(output)) {
+			String name = output.getName() + "-" + getRootName(directory);
+			output = new File(output.getParentFile(), name);
+			for (int i = 2; used.contains(output); i++) {
+				output = new File(output.getParentFile(), name + "-" + i);
+			}
+		}
+		used.add(directory);
+		used.add(output);
+
+		boolean main = output.equals(resolve(temporaryDirectory).getAbsoluteFile());
+		File manifestFile = resolve(manifest);
+		if (!main) {
+			String name = manifestFile.getName();
+			int idx = name.lastIndexOf('.');
+			name = idx == -1 ? name + "-" + output.getName()
+					: name.substring(0, idx) + "-" + output.getName() + name.substring(idx);
+			manifestFile = new File(manifestFile.getParentFile(), name);
+		}
+
+		File[] targetDirs;
+		if (!workOnCopy) {
+			targetDirs = new File[] { directory };
+		} else if (variants == null || variants.length == 0) {
+			targetDirs = new File[] { output };
+		} else {
+			// Only variants of the main output may be given their own directory
+			targetDirs = new File[variants.length];
+			for (int i = 0; i < variants.length; i++) {
+				Variant variant = variants[i];
+				targetDirs[i] = (!main || variant.outputDirectory == null || variant.outputDirectory.length() == 0
+						? new File(output, variant.name)
+						: resolve(variant.outputDirectory)).getAbsoluteFile();
+				if (!targetDirs[i].equals(output) && !used.add(targetDirs[i])) {
+					throw new MojoExecutionException("The output directory " + targetDirs[i] + " of variant '"
+							+ variant.name + "' is already used by another variant or source root.");
+				}
+			}
+		}
+		roots.add(new Root(sourceRoot, directory, targetDirs, test, manifestFile));
+	}
+
+	private String getRootName(File directory) {
+		String base = project.getBasedir().getAbsolutePath() + File.separator;
+		String path = directory.getPath();
+		if (path.startsWith(base)) {
+			path = path.substring(base.length());
+		}
+		return path.replace(File.separatorChar, '-').replace(':', '-');
+	}
+
+	private File resolve(String path) {
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(project.getBasedir(), path);
+	}
+
+	private void writeReport() throws MojoExecutionException {
+		if (report == null || report.length() == 0) {
+			return;
+		}
+		boolean csv = "csv".equalsIgnoreCase(report);
+		if (!csv && !"json".equalsIgnoreCase(report)) {
+			throw new MojoExecutionException("Unknown report format '" + report + "', must be json or csv.");
+		}
+		File reportFile = new File(resolve(reportDirectory), csv ? "report.csv" : "report.json");
+		try {
+			if (csv) {
+				statistics.writeCsv(reportFile);
+			} else {
+				statistics.writeJson(reportFile);
+			}
+		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to write report " + reportFile + ".", e);
+		}
+		getLog().info("Wrote report to " + reportFile);
+	}
+
+	private Charset getEncoding() throws MojoExecutionException {
+		if (encoding == null || encoding.length() == 0) {
+			return Charset.defaultCharset();
+		}
+		try {
+			return Charset.forName(encoding);
+		} catch (IllegalArgumentException e) {
+			throw new MojoExecutionException("Unsupported encoding '" + encoding + "'.", e);
+		}
+	}
+
+	private static Map<String, String> tokenMap(Token[] tokens) {
+		Map<String, String> t = new HashMap<String, String>();
+		if (tokens != null) {
+			for (Token token : tokens) {
+				t.put(token.key, token.value);
+			}
+		}
+		return t;
+	}
+
+	private static List<String> symbolList(String[] symbols) {
+		List<String> l = new ArrayList<String>();
+		if (symbols != null) {
+			l.addAll(Arrays.asList(symbols));
+		}
+		return l;
+	}
+
+	private SourceManifest copyChangedSource(CodeSwitcher switcher, File sourceDirectory, File[] targetDirectories,
+			File manifestFile, SourceManifest current) throws MojoExecutionException {
+		SourceManifest previous = SourceManifest.load(manifestFile);
+		boolean configurationChanged = !current.getConfigurationHash().equals(previous.getConfigurationHash());
+		Set<String> changedSymbols = configurationChanged ? current.getChangedSymbols(previous) : null;
+		if (configurationChanged && !previous.getPaths().isEmpty()) {
+			if (changedSymbols == null) {
+				getLog().info("Configuration has changed, all files will be processed.");
+			} else {
+				getLog().info("Symbols " + changedSymbols
+						+ " have changed, only files that refer to them will be processed.");
+			}
+		}
+		int[] counts = new int[2];
+		try {
+			copyChangedSource(switcher, new SourceTree(sourceDirectory, targetDirectories), previous, current,
+					configurationChanged, changedSymbols, counts);
+
+			// Remove the outputs of any sources that have since been deleted
+			int deleted = 0;
+			for (String path : previous.getPaths()) {
+				if (current.get(path) == null) {
+					for (File targetDirectory : targetDirectories) {
+						File output = new File(targetDirectory, path);
+						if (output.exists() && !output.delete()) {
+							throw new IOException("Failed to delete " + output + ".");
+						}
+					}
+					deleted++;
+					statistics.deleted.incrementAndGet();
+				}
+			}
+			getLog().info(String.format("%d file(s) changed, %d unchanged, %d deleted.", counts[0], counts[1],
+					deleted));
+		} catch (IOException | ParseException e) {
 			throw new MojoExecutionException("Failed to copy source to temporary directory.", e);
 		}
+		return current;
+	}
+
+	private void copyChangedSource(final CodeSwitcher switcher, SourceTree tree, final SourceManifest previous,
+			final SourceManifest current, final boolean configurationChanged, final Set<String> changedSymbols,
+			final int[] counts) throws IOException, ParseException {
+		tree.walk(tree.directory.toPath(), new SourceTree.Visitor() {
+			@Override
+			public void visit(File source, File[] target, String relativePath) throws IOException {
+				SourceManifest.Entry entry = previous.get(relativePath);
+				if (entry != null && (!configurationChanged
+						|| (changedSymbols != null && !entry.isAffectedBy(changedSymbols))) && allExist(target)
+						&& entry.isUpToDate(source)) {
+					// Record the current modification time so the content is not hashed again
+					current.put(relativePath, new SourceManifest.Entry(entry.size, source.lastModified(), entry.hash,
+							entry.volatileContent, entry.symbols));
+					counts[1]++;
+					statistics.scanned.incrementAndGet();
+					statistics.unchanged.incrementAndGet();
+				} else {
+					// Read once, for both the hash and the timestamp token
+					long lastModified = source.lastModified();
+					byte[] content = Files.readAllBytes(source.toPath());
+					addSource(switcher, source, relativePath, target);
+					boolean volatileContent = timestampToken != null && timestampToken.length() > 0
+							&& constants == null
+							&& new String(content, switcher.getEncoding()).contains(timestampToken);
+					current.put(relativePath, new SourceManifest.Entry(content.length, lastModified,
+							SourceManifest.hash(content), volatileContent, null));
+					counts[0]++;
+				}
+			}
+		});
+	}
+
+	/*
+	 * Add only the files the IDE reports as changed, and remove the outputs of
+	 * those it reports as deleted. The files touched are returned, so only
+	 * they are refreshed.
+	 */
+	private List<File> addDelta(CodeSwitcher switcher, File sourceDirectory, File[] targetDirectories)
+			throws MojoExecutionException {
+		List<File> touched = new ArrayList<File>();
+		if (!buildContext.hasDelta(sourceDirectory)) {
+			getLog().info("No source has changed.");
+			return touched;
+		}
+		int deleted = 0;
+		try {
+			Scanner scanner = buildContext.newScanner(sourceDirectory);
+			scanner.scan();
+			String[] changed = scanner.getIncludedFiles();
+			for (String path : changed) {
+				File source = new File(sourceDirectory, path);
+				path = path.replace(File.separatorChar, '/');
+				if (targetDirectories == null) {
+					if (switcher.isSelected(path)) {
+						buildContext.removeMessages(source);
+						switcher.addFile(source, source);
+						touched.add(source);
+					}
+				} else {
+					File[] target = children(targetDirectories, path);
+					addSource(switcher, source, path, target);
+					touched.addAll(Arrays.asList(target));
+				}
+			}
+
+			if (targetDirectories != null) {
+				scanner = buildContext.newDeleteScanner(sourceDirectory);
+				scanner.scan();
+				for (String path : scanner.getIncludedFiles()) {
+					for (File output : children(targetDirectories, path)) {
+						if (output.isDirectory()) {
+							FileUtils.deleteDirectory(output);
+						} else if (output.exists() && !output.delete()) {
+							throw new IOException("Failed to delete " + output + ".");
+						}
+						touched.add(output);
+					}
+					deleted++;
+					statistics.deleted.incrementAndGet();
+				}
+			}
+			getLog().info(String.format("%d file(s) changed, %d deleted.", changed.length, deleted));
+		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to copy changed source to temporary directory.", e);
+		}
+		return touched;
+	}
+
+	private String getConfigurationHash(Map<String, String> tokens) {
+		// The timestamp token value changes on every build, so only its key is
+		// part of the configuration. Files that use it are always processed.
+		Map<String, String> sortedTokens = new TreeMap<String, String>(tokens);
+		if (timestampToken != null) {
+			sortedTokens.remove(timestampToken);
+		}
+		StringBuilder b = new StringBuilder();
+		b.append("tokens=").append(sortedTokens).append('\n');
+		b.append("timestampToken=").append(timestampToken).append('\n');
+		b.append("constantsClass=").append(constantsClass).append('\n');
+		b.append("comment=").append(comment).append('\n');
+		b.append("lineSeparator=").append(lineSeparator).append('\n');
+		b.append("encoding=").append(encoding).append('\n');
+		b.append("includes=").append(includes == null ? null : Arrays.asList(includes)).append('\n');
+		b.append("excludes=").append(excludes == null ? null : Arrays.asList(excludes)).append('\n');
+		if (variants != null) {
+			for (Variant variant : variants) {
+				b.append("variant=").append(variant.name).append('\n');
+				b.append("tokens=").append(new TreeMap<String, String>(tokenMap(variant.tokens))).append('\n');
+				b.append("outputDirectory=").append(variant.outputDirectory).append('\n');
+			}
+		}
+		return SourceManifest.hash(b.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/*
+	 * The key of a root is the hash of everything its outputs depend on. The
+	 * files are hashed in order of their path, so the key does not depend on
+	 * the order the file system lists them in. The hashes recorded in the
+	 * manifest are used for files that have not changed since it was written.
+	 */
+	private String getCacheKey(CodeSwitcher switcher, Root root, String configurationHash,
+			final Set<String> paths) throws MojoExecutionException {
+		final SourceManifest previous = incremental ? SourceManifest.load(root.manifest) : null;
+		final Map<String, String> hashes = new TreeMap<String, String>();
+		try {
+			new SourceTree(root.directory, root.targetDirs).walk(root.directory.toPath(), new SourceTree.Visitor() {
+				@Override
+				public void visit(File source, File[] targets, String path) throws IOException {
+					SourceManifest.Entry entry = previous == null ? null : previous.get(path);
+					hashes.put(path, entry != null && !entry.volatileContent && entry.size == source.length()
+							&& entry.lastModified == source.lastModified() ? entry.hash : SourceManifest.hash(source));
+				}
+			});
+		} catch (IOException | ParseException e) {
+			throw new MojoExecutionException("Failed to hash source in " + root.directory + ".", e);
+		}
+		paths.addAll(hashes.keySet());
+
+		StringBuilder b = new StringBuilder();
+		b.append("plugin=").append(pluginVersion).append('\n');
+		b.append("configuration=").append(configurationHash).append('\n');
+		b.append("effectiveLineSeparator=").append(switcher.getLineSeparator()).append('\n');
+		b.append("effectiveEncoding=").append(switcher.getEncoding().name()).append('\n');
+		for (Map.Entry<String, String> en : hashes.entrySet()) {
+			b.append(en.getKey()).append('=').append(en.getValue()).append('\n');
+		}
+		return SourceManifest.hash(b.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static boolean hasCacheKey(Root root, String key) {
+		for (File targetDir : root.targetDirs) {
+			File file = new File(targetDir, CACHE_KEY);
+			try {
+				if (!file.isFile() || !key.equals(new String(Files.readAllBytes(file.toPath()),
+						StandardCharsets.UTF_8).trim())) {
+					return false;
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeCacheKey(Root root, String key) throws MojoExecutionException {
+		for (File targetDir : root.targetDirs) {
+			File file = new File(targetDir, CACHE_KEY);
+			try {
+				if (!targetDir.mkdirs() && !targetDir.isDirectory()) {
+					throw new IOException("Failed to create directory " + targetDir + ".");
+				}
+				Files.write(file.toPath(), (key + "\n").getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				throw new MojoExecutionException("Failed to write cache key " + file + ".", e);
+			}
+		}
+	}
+
+	/*
+	 * Remove any output that has no source, so what is left after processing
+	 * depends only on the key. An old key is left to be replaced.
+	 */
+	private void removeStaleOutputs(Root root, final Set<String> paths) throws MojoExecutionException {
+		for (File targetDir : root.targetDirs) {
+			if (!targetDir.isDirectory()) {
+				continue;
+			}
+			final Path base = targetDir.toPath();
+			try {
+				Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						String path = base.relativize(file).toString().replace(File.separatorChar, '/');
+						if (!paths.contains(path) && !path.equals(CACHE_KEY)) {
+							Files.delete(file);
+							statistics.deleted.incrementAndGet();
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+						if (exc != null) {
+							throw exc;
+						}
+						if (!dir.equals(base)) {
+							DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+							try {
+								if (stream.iterator().hasNext()) {
+									return FileVisitResult.CONTINUE;
+								}
+							} finally {
+								stream.close();
+							}
+							Files.delete(dir);
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				throw new MojoExecutionException("Failed to remove stale outputs from " + targetDir + ".", e);
+			}
+		}
+	}
+
+	/*
+	 * The state of every symbol that is enabled or disabled in each variant,
+	 * keyed by the variant name and the symbol. These are kept out of the
+	 * configuration hash, so a change to them only affects the files that
+	 * refer to the symbols that changed.
+	 */
+	private Map<String, String> getSymbolStates() {
+		Map<String, String> states = new TreeMap<String, String>();
+		if (variants == null || variants.length == 0) {
+			putSymbolStates(states, "", sortedSymbols(enable), sortedSymbols(disable));
+		} else {
+			for (Variant variant : variants) {
+				Set<String> on = sortedSymbols(enable);
+				Set<String> off = sortedSymbols(disable);
+				on.removeAll(sortedSymbols(variant.disable));
+				off.removeAll(sortedSymbols(variant.enable));
+				on.addAll(sortedSymbols(variant.enable));
+				off.addAll(sortedSymbols(variant.disable));
+				putSymbolStates(states, variant.name, on, off);
+			}
+		}
+		return states;
+	}
+
+	private static void putSymbolStates(Map<String, String> states, String variant, Set<String> on,
+			Set<String> off) {
+		// Enabled wins when a symbol is both
+		for (String symbol : off) {
+			states.put(variant + "/" + symbol, "off");
+		}
+		for (String symbol : on) {
+			states.put(variant + "/" + symbol, "on");
+		}
+	}
+
+	/*
+	 * Record the symbols each file that was processed refers to, so a later
+	 * change to other symbols can leave it alone.
+	 */
+	private void recordSymbols(CodeSwitcher switcher, File sourceDirectory, SourceManifest manifest) {
+		for (String path : new ArrayList<String>(manifest.getPaths())) {
+			SourceManifest.Entry entry = manifest.get(path);
+			if (entry.symbols == null) {
+				Set<String> symbols = switcher.isSelected(path)
+						? switcher.getReferencedSymbols(new File(sourceDirectory, path))
+						: Collections.<String>emptySet();
+				if (symbols != null) {
+					manifest.put(path, new SourceManifest.Entry(entry.size, entry.lastModified, entry.hash,
+							entry.volatileContent, new TreeSet<String>(symbols)));
+				}
+			}
+		}
+	}
+
+	private static Set<String> sortedSymbols(String[] symbols) {
+		Set<String> s = new TreeSet<String>();
+		if (symbols != null) {
+			s.addAll(Arrays.asList(symbols));
+		}
+		return s;
+	}
+
+	/*
+	 * Selected source is read once from the source directory and the result
+	 * for each variant written straight to its target. Anything else is just
+	 * copied.
+	 */
+	private void addSource(CodeSwitcher switcher, File source, String path, File[] targets) throws IOException {
+		if (switcher.isSelected(path)) {
+			buildContext.removeMessages(source);
+			switcher.addFile(source, targets);
+		} else {
+			long copyStarted = System.nanoTime();
+			for (File target : targets) {
+				switcher.copyOutput(source, target, source.lastModified());
+				statistics.bytesWritten.addAndGet(target.length());
+			}
+			statistics.scanned.incrementAndGet();
+			statistics.bytesRead.addAndGet(source.length());
+			statistics.copyNanos.addAndGet(System.nanoTime() - copyStarted);
+		}
+	}
+
+	private static File[] children(File[] directories, String name) {
+		File[] children = new File[directories.length];
+		for (int i = 0; i < directories.length; i++) {
+			children[i] = new File(directories[i], name);
+		}
+		return children;
+	}
+
+	private static boolean allExist(File[] files) {
+		for (File file : files) {
+			if (!file.exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * A directory of source, and the directories each variant of it is
+	 * written to, or the directory itself when working in place.
+	 */
+	static class Root {
+		final String sourceRoot;
+		final File directory;
+		final File[] targetDirs;
+		final boolean test;
+		final File manifest;
+
+		Root(String sourceRoot, File directory, File[] targetDirs, boolean test, File manifest) {
+			this.sourceRoot = sourceRoot;
+			this.directory = directory;
+			this.targetDirs = targetDirs;
+			this.test = test;
+			this.manifest = manifest;
+		}
+
+		String getKey() {
+			return CodeswitcherMojo.class.getName() + ":" + targetDirs[0].getAbsolutePath();
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,250 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Pre-processes the source into memory and compiles it straight away with the
+ * system Java compiler, so the only files written are the class files. Each
+ * variant is compiled on its own. Test source is not compiled.
+ */
+@Mojo( name = "compile", threadSafe = true, defaultPhase = LifecyclePhase.COMPILE,
+		requiresDependencyResolution = ResolutionScope.COMPILE )
+public class CompileMojo extends CodeswitcherMojo {
+
+	/**
+	 * The directory class files are written to. The classes of each variant
+	 * are written to a directory next to it, named after the variant.
+	 */
+	@Parameter( property = "codeswitch.classesDirectory", defaultValue = "${project.build.outputDirectory}" )
+	private File classesDirectory;
+
+	/**
+	 * When set, the pre-processed source is also written to this directory,
+	 * for debugging. The source of each variant is written to a directory
+	 * named after the variant inside it.
+	 */
+	@Parameter( property = "codeswitch.dumpDirectory" )
+	private File dumpDirectory;
+
+	/**
+	 * The Java release to compile for.
+	 */
+	@Parameter( property = "maven.compiler.release" )
+	private String release;
+
+	/**
+	 * The Java version of the source, when <code>release</code> is not set.
+	 */
+	@Parameter( property = "maven.compiler.source" )
+	private String source;
+
+	/**
+	 * The Java version to generate classes for, when <code>release</code> is
+	 * not set.
+	 */
+	@Parameter( property = "maven.compiler.target" )
+	private String target;
+
+	/**
+	 * Any other arguments to pass to the compiler.
+	 */
+	@Parameter
+	private String[] compilerArguments;
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new MojoExecutionException("No Java compiler is available, Maven must be run with a JDK.");
+		}
+
+		List<File> directories = new ArrayList<File>();
+		for (Root root : getRoots()) {
+			if (!root.test) {
+				directories.add(root.directory);
+			}
+		}
+		if (directories.isEmpty()) {
+			getLog().warn("No or missing source directory to compile.");
+			return;
+		}
+
+		List<File> classpath = new ArrayList<File>();
+		try {
+			for (String element : project.getCompileClasspathElements()) {
+				// Classes left from an earlier build must not satisfy references
+				if (!new File(element).getAbsoluteFile().equals(classesDirectory.getAbsoluteFile())) {
+					classpath.add(new File(element));
+				}
+			}
+		} catch (DependencyResolutionRequiredException e) {
+			throw new MojoExecutionException("Failed to resolve the compile class path.", e);
+		}
+
+		CodeSwitcher switcher = newSwitcher(getTokenValues());
+		File constants = writeConstants(switcher.getLineSeparator());
+		List<String> variants = getVariantNames();
+		if (variants.isEmpty()) {
+			variants = Collections.singletonList(null);
+		}
+		for (String variant : variants) {
+			long started = System.nanoTime();
+			List<ProcessedSource> sources = new ArrayList<ProcessedSource>();
+			int changed = 0;
+			try {
+				for (File directory : directories) {
+					for (JavaFileObject file : switcher.processInMemory(directory.toPath(), variant)) {
+						ProcessedSource processed = (ProcessedSource) file;
+						sources.add(processed);
+						if (processed.isChanged()) {
+							changed++;
+						}
+					}
+				}
+			} catch (ParseException e) {
+				throw new MojoExecutionException("Failed to process file.", e);
+			}
+			if (constants != null && !contains(sources, constants)) {
+				sources.add(new ProcessedSource(constants, getConstants().getPath(), null, switcher.getEncoding()));
+			}
+			if (dumpDirectory != null) {
+				dump(sources, variant == null ? dumpDirectory : new File(dumpDirectory, variant));
+			}
+
+			File output = variant == null ? classesDirectory
+					: new File(classesDirectory.getParentFile(), classesDirectory.getName() + "-" + variant);
+			getLog().info("Compiling " + sources.size() + " source file(s), " + changed + " pre-processed, to "
+					+ output);
+			compile(compiler, sources, classpath, output, switcher);
+			getLog().info(String.format("Compiled in %d ms.", (System.nanoTime() - started) / 1000000));
+		}
+	}
+
+	private void compile(JavaCompiler compiler, List<ProcessedSource> sources, List<File> classpath, File output,
+			CodeSwitcher switcher) throws MojoExecutionException {
+		if (!output.mkdirs() && !output.isDirectory()) {
+			throw new MojoExecutionException("Failed to create directory " + output + ".");
+		}
+		List<String> options = new ArrayList<String>();
+		options.add("-g");
+		if (release != null && release.length() > 0) {
+			options.addAll(Arrays.asList("--release", release));
+		} else {
+			if (source != null && source.length() > 0) {
+				options.addAll(Arrays.asList("-source", source));
+			}
+			if (target != null && target.length() > 0) {
+				options.addAll(Arrays.asList("-target", target));
+			}
+		}
+		if (compilerArguments != null) {
+			options.addAll(Arrays.asList(compilerArguments));
+		}
+
+		DiagnosticListener<JavaFileObject> listener = new DiagnosticListener<JavaFileObject>() {
+			@Override
+			public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+				String message = diagnostic.getSource() == null ? diagnostic.getMessage(null)
+						: diagnostic.getSource().getName() + "[" + diagnostic.getLineNumber() + "] "
+								+ diagnostic.getMessage(null);
+				switch (diagnostic.getKind()) {
+				case ERROR:
+					getLog().error(message);
+					break;
+				case WARNING:
+				case MANDATORY_WARNING:
+					getLog().warn(message);
+					break;
+				default:
+					getLog().info(message);
+					break;
+				}
+			}
+		};
+
+		StandardJavaFileManager standard = compiler.getStandardFileManager(listener, null, switcher.getEncoding());
+		try {
+			standard.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(output));
+			standard.setLocation(StandardLocation.CLASS_PATH, classpath);
+			MemoryFileManager fileManager = new MemoryFileManager(standard, sources);
+			try {
+				if (!compiler.getTask(null, fileManager, listener, options, null, sources).call()) {
+					throw new MojoExecutionException("Compilation failed.");
+				}
+			} finally {
+				fileManager.close();
+			}
+		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to compile to " + output + ".", e);
+		}
+	}
+
+	private static boolean contains(List<ProcessedSource> sources, File file) {
+		for (ProcessedSource source : sources) {
+			if (source.source.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void dump(List<ProcessedSource> sources, File directory) throws MojoExecutionException {
+		try {
+			for (ProcessedSource source : sources) {
+				File file = new File(directory, source.path);
+				File dir = file.getParentFile();
+				if (!dir.mkdirs() && !dir.isDirectory()) {
+					throw new IOException("Failed to create directory " + dir + ".");
+				}
+				InputStream in = source.openInputStream();
+				try {
+					Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					in.close();
+				}
+			}
+		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to write pre-processed source to " + directory + ".", e);
+		}
+		getLog().info("Wrote pre-processed source to " + directory);
+	}
+}
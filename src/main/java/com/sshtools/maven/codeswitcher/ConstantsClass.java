@@ -0,0 +1,207 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Generates the source of a class holding the values of tokens that change on
+ * every build, so that only this class changes and not every file the tokens
+ * appear in.
+ * <p>
+ * The constants are assigned in a static initializer, so they are not compile
+ * time constants. The compiler would otherwise copy their values into every
+ * class that refers to them, and those classes would be out of date as soon
+ * as the values change.
+ */
+class ConstantsClass {
+
+	private static final Pattern LONG = Pattern.compile("-?\\d+[lL]");
+	private static final Pattern INTEGER = Pattern.compile("-?\\d+");
+	private static final Pattern DOUBLE = Pattern.compile("-?(\\d+\\.\\d*|\\.\\d+|\\d+)([eE][-+]?\\d+)?[dD]?");
+
+	private final String packageName;
+	private final String simpleName;
+	private final Map<String, String[]> constants = new LinkedHashMap<String, String[]>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param className fully qualified name of the class
+	 */
+	ConstantsClass(String className) {
+		int idx = className.lastIndexOf('.');
+		packageName = idx == -1 ? "" : className.substring(0, idx);
+		simpleName = className.substring(idx + 1);
+	}
+
+	/**
+	 * Get whether a name is a valid fully qualified class name.
+	 *
+	 * @param className class name
+	 * @return valid
+	 */
+	static boolean isValidName(String className) {
+		for (String part : className.split("\\.", -1)) {
+			if (part.length() == 0 || !Character.isJavaIdentifierStart(part.charAt(0))) {
+				return false;
+			}
+			for (int i = 1; i < part.length(); i++) {
+				if (!Character.isJavaIdentifierPart(part.charAt(i))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add a constant for a token.
+	 *
+	 * @param key   token key, from which the name of the constant is made
+	 * @param value value, a Java expression
+	 * @param type  Java type, or <code>null</code> to infer it from the value
+	 * @return expression that refers to the constant, or <code>null</code> if
+	 *         the type could not be inferred
+	 */
+	String add(String key, String value, String type) {
+		if (type == null || type.length() == 0) {
+			type = inferType(value);
+			if (type == null) {
+				return null;
+			}
+			if (type.equals("long") && INTEGER.matcher(value.trim()).matches()) {
+				// Too large for an int
+				value = value.trim() + "L";
+			}
+		}
+		String base = toName(key);
+		String name = base;
+		for (int i = 2; constants.containsKey(name); i++) {
+			name = base + "_" + i;
+		}
+		constants.put(name, new String[] { type, value });
+		return (packageName.length() == 0 ? "" : packageName + ".") + simpleName + "." + name;
+	}
+
+	/**
+	 * Get the path of the source, relative to a source directory.
+	 *
+	 * @return path
+	 */
+	String getPath() {
+		return (packageName.length() == 0 ? "" : packageName.replace('.', '/') + "/") + simpleName + ".java";
+	}
+
+	/**
+	 * Generate the source.
+	 *
+	 * @param lineSeparator line separator
+	 * @return source
+	 */
+	String getSource(String lineSeparator) {
+		StringBuilder b = new StringBuilder();
+		if (packageName.length() > 0) {
+			b.append("package ").append(packageName).append(';').append(lineSeparator).append(lineSeparator);
+		}
+		b.append("/* Generated by codeswitcher-maven-plugin. Do not edit. */").append(lineSeparator);
+		b.append("public final class ").append(simpleName).append(" {").append(lineSeparator);
+		for (Map.Entry<String, String[]> en : constants.entrySet()) {
+			b.append("\tpublic static final ").append(en.getValue()[0]).append(' ').append(en.getKey()).append(';')
+					.append(lineSeparator);
+		}
+		b.append(lineSeparator);
+		b.append("\tstatic {").append(lineSeparator);
+		for (Map.Entry<String, String[]> en : constants.entrySet()) {
+			b.append("\t\t").append(en.getKey()).append(" = ").append(en.getValue()[1]).append(';')
+					.append(lineSeparator);
+		}
+		b.append("\t}").append(lineSeparator);
+		b.append(lineSeparator);
+		b.append("\tprivate ").append(simpleName).append("() {").append(lineSeparator);
+		b.append("\t}").append(lineSeparator);
+		b.append('}').append(lineSeparator);
+		return b.toString();
+	}
+
+	/*
+	 * Upper case, with anything that cannot be part of a name replaced by a
+	 * single underscore, so "@RELEASE-DATE@" becomes "RELEASE_DATE".
+	 */
+	static String toName(String key) {
+		StringBuilder b = new StringBuilder();
+		for (char ch : key.toCharArray()) {
+			if (Character.isJavaIdentifierPart(ch) && ch != '$') {
+				b.append(Character.toUpperCase(ch));
+			} else if (b.length() > 0 && b.charAt(b.length() - 1) != '_') {
+				b.append('_');
+			}
+		}
+		while (b.length() > 0 && b.charAt(b.length() - 1) == '_') {
+			b.setLength(b.length() - 1);
+		}
+		if (b.length() == 0 || !Character.isJavaIdentifierStart(b.charAt(0))) {
+			b.insert(0, "TOKEN_");
+		}
+		return b.toString();
+	}
+
+	/*
+	 * The type of a literal value, or null if it is not one. Whole numbers
+	 * are an int if they fit, otherwise a long, which must then be given an
+	 * 'L' suffix. Those too large for a long have no type.
+	 */
+	static String inferType(String value) {
+		value = value.trim();
+		if (value.equals("true") || value.equals("false")) {
+			return "boolean";
+		} else if (LONG.matcher(value).matches()) {
+			return fitsLong(value.substring(0, value.length() - 1)) ? "long" : null;
+		} else if (INTEGER.matcher(value).matches()) {
+			if (fitsInt(value)) {
+				return "int";
+			}
+			return fitsLong(value) ? "long" : null;
+		} else if (DOUBLE.matcher(value).matches()) {
+			return "double";
+		} else if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+			return "String";
+		} else if (value.length() > 2 && value.startsWith("'") && value.endsWith("'")) {
+			return "char";
+		}
+		return null;
+	}
+
+	private static boolean fitsInt(String value) {
+		try {
+			Integer.parseInt(value);
+			return true;
+		} catch (NumberFormatException nfe) {
+			return false;
+		}
+	}
+
+	private static boolean fitsLong(String value) {
+		try {
+			Long.parseLong(value);
+			return true;
+		} catch (NumberFormatException nfe) {
+			return false;
+		}
+	}
+}
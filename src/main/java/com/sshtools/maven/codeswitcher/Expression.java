@@ -0,0 +1,296 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A boolean expression of symbols used by the <code>#if</code> directive,
+ * supporting <code>&amp;&amp;</code>, <code>||</code>, <code>!</code> and
+ * parentheses. <code>!</code> binds tightest, then <code>&amp;&amp;</code>,
+ * then <code>||</code>.
+ * <p>
+ * Symbols may be enabled, disabled or unknown, so expressions are evaluated
+ * using three valued logic. For example, <code>A || B</code> is true if
+ * <code>A</code> is enabled even when <code>B</code> is unknown, but unknown if
+ * <code>A</code> is disabled.
+ */
+abstract class Expression {
+
+	/**
+	 * Evaluate the expression.
+	 *
+	 * @param symbols symbols
+	 * @return {@link Boolean#TRUE}, {@link Boolean#FALSE} or <code>null</code>
+	 *         if the result depends on an unknown symbol
+	 */
+	abstract Boolean evaluate(SymbolTable symbols);
+
+	/**
+	 * Get a copy of the expression with each symbol resolved to its id in a
+	 * symbol table, so evaluating it against that table only looks up bits.
+	 * The copy must only be evaluated against the same table.
+	 *
+	 * @param symbols symbols
+	 * @return bound expression
+	 */
+	abstract Expression bind(SymbolTable symbols);
+
+	/**
+	 * Add all symbols used by the expression to a collection.
+	 *
+	 * @param symbols collection to add symbols to
+	 */
+	abstract void collectSymbols(Collection<String> symbols);
+
+	/**
+	 * Parse an expression.
+	 *
+	 * @param text text
+	 * @return expression
+	 * @throws ParseException if the expression is invalid
+	 */
+	static Expression parse(String text) throws ParseException {
+		Parser parser = new Parser(text);
+		Expression expression = parser.parseOr();
+		parser.skipSpaces();
+		if (parser.pos < text.length()) {
+			throw new ParseException("Unexpected '" + text.charAt(parser.pos) + "' in expression '" + text + "'",
+					parser.pos);
+		}
+		return expression;
+	}
+
+	private static List<Expression> bindAll(Expression[] terms, SymbolTable symbols) {
+		List<Expression> bound = new ArrayList<Expression>(terms.length);
+		for (Expression term : terms) {
+			bound.add(term.bind(symbols));
+		}
+		return bound;
+	}
+
+	private static class Parser {
+		private final String text;
+		private int pos;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		Expression parseOr() throws ParseException {
+			List<Expression> terms = new ArrayList<Expression>();
+			terms.add(parseAnd());
+			while (consume("||")) {
+				terms.add(parseAnd());
+			}
+			return terms.size() == 1 ? terms.get(0) : new Or(terms);
+		}
+
+		Expression parseAnd() throws ParseException {
+			List<Expression> terms = new ArrayList<Expression>();
+			terms.add(parseUnary());
+			while (consume("&&")) {
+				terms.add(parseUnary());
+			}
+			return terms.size() == 1 ? terms.get(0) : new And(terms);
+		}
+
+		Expression parseUnary() throws ParseException {
+			if (consume("!")) {
+				return new Not(parseUnary());
+			}
+			if (consume("(")) {
+				Expression expression = parseOr();
+				if (!consume(")")) {
+					throw new ParseException("Missing ')' in expression '" + text + "'", pos);
+				}
+				return expression;
+			}
+			skipSpaces();
+			int start = pos;
+			while (pos < text.length() && isSymbolChar(text.charAt(pos))) {
+				pos++;
+			}
+			if (start == pos) {
+				throw new ParseException("Expected a symbol at position " + pos + " in expression '" + text + "'",
+						pos);
+			}
+			return new Symbol(text.substring(start, pos));
+		}
+
+		boolean consume(String value) {
+			skipSpaces();
+			if (text.startsWith(value, pos)) {
+				pos += value.length();
+				return true;
+			}
+			return false;
+		}
+
+		void skipSpaces() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private static boolean isSymbolChar(char ch) {
+			return !Character.isWhitespace(ch) && ch != '&' && ch != '|' && ch != '!' && ch != '(' && ch != ')';
+		}
+	}
+
+	static class Symbol extends Expression {
+		private final String name;
+
+		Symbol(String name) {
+			this.name = name;
+		}
+
+		@Override
+		Boolean evaluate(SymbolTable symbols) {
+			return symbols.get(name);
+		}
+
+		@Override
+		Expression bind(SymbolTable symbols) {
+			return new BoundSymbol(name, symbols.id(name));
+		}
+
+		@Override
+		void collectSymbols(Collection<String> symbols) {
+			symbols.add(name);
+		}
+	}
+
+	static class BoundSymbol extends Expression {
+		private final String name;
+		private final int id;
+
+		BoundSymbol(String name, int id) {
+			this.name = name;
+			this.id = id;
+		}
+
+		@Override
+		Boolean evaluate(SymbolTable symbols) {
+			return symbols.get(id);
+		}
+
+		@Override
+		Expression bind(SymbolTable symbols) {
+			return new BoundSymbol(name, symbols.id(name));
+		}
+
+		@Override
+		void collectSymbols(Collection<String> symbols) {
+			symbols.add(name);
+		}
+	}
+
+	static class Not extends Expression {
+		private final Expression expression;
+
+		Not(Expression expression) {
+			this.expression = expression;
+		}
+
+		@Override
+		Boolean evaluate(SymbolTable symbols) {
+			Boolean value = expression.evaluate(symbols);
+			return value == null ? null : !value;
+		}
+
+		@Override
+		Expression bind(SymbolTable symbols) {
+			return new Not(expression.bind(symbols));
+		}
+
+		@Override
+		void collectSymbols(Collection<String> symbols) {
+			expression.collectSymbols(symbols);
+		}
+	}
+
+	static class And extends Expression {
+		private final Expression[] terms;
+
+		And(List<Expression> terms) {
+			this.terms = terms.toArray(new Expression[0]);
+		}
+
+		@Override
+		Expression bind(SymbolTable symbols) {
+			return new And(bindAll(terms, symbols));
+		}
+
+		@Override
+		Boolean evaluate(SymbolTable symbols) {
+			Boolean result = Boolean.TRUE;
+			for (Expression term : terms) {
+				Boolean value = term.evaluate(symbols);
+				if (Boolean.FALSE.equals(value)) {
+					return Boolean.FALSE;
+				} else if (value == null) {
+					result = null;
+				}
+			}
+			return result;
+		}
+
+		@Override
+		void collectSymbols(Collection<String> symbols) {
+			for (Expression term : terms) {
+				term.collectSymbols(symbols);
+			}
+		}
+	}
+
+	static class Or extends Expression {
+		private final Expression[] terms;
+
+		Or(List<Expression> terms) {
+			this.terms = terms.toArray(new Expression[0]);
+		}
+
+		@Override
+		Expression bind(SymbolTable symbols) {
+			return new Or(bindAll(terms, symbols));
+		}
+
+		@Override
+		Boolean evaluate(SymbolTable symbols) {
+			Boolean result = Boolean.FALSE;
+			for (Expression term : terms) {
+				Boolean value = term.evaluate(symbols);
+				if (Boolean.TRUE.equals(value)) {
+					return Boolean.TRUE;
+				} else if (value == null) {
+					result = null;
+				}
+			}
+			return result;
+		}
+
+		@Override
+		void collectSymbols(Collection<String> symbols) {
+			for (Expression term : terms) {
+				term.collectSymbols(symbols);
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * Serves source processed into memory as the source path of the compiler, so
+ * that any source it looks up is the processed source, never the original.
+ * Everything else, such as the class path and where class files are written,
+ * is left to the standard file manager.
+ */
+class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+	private final Map<String, ProcessedSource> sources = new HashMap<String, ProcessedSource>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fileManager standard file manager
+	 * @param sources     processed source
+	 */
+	MemoryFileManager(StandardJavaFileManager fileManager, Collection<ProcessedSource> sources) {
+		super(fileManager);
+		for (ProcessedSource source : sources) {
+			this.sources.put(source.getBinaryName(), source);
+		}
+	}
+
+	@Override
+	public boolean hasLocation(Location location) {
+		return location == StandardLocation.SOURCE_PATH || super.hasLocation(location);
+	}
+
+	@Override
+	public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds, boolean recurse)
+			throws IOException {
+		if (location != StandardLocation.SOURCE_PATH) {
+			return super.list(location, packageName, kinds, recurse);
+		}
+		List<JavaFileObject> found = new ArrayList<JavaFileObject>();
+		if (kinds.contains(Kind.SOURCE)) {
+			for (ProcessedSource source : sources.values()) {
+				String sourcePackage = source.getPackageName();
+				if (sourcePackage.equals(packageName)
+						|| (recurse && (packageName.length() == 0 || sourcePackage.startsWith(packageName + ".")))) {
+					found.add(source);
+				}
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public String inferBinaryName(Location location, JavaFileObject file) {
+		if (file instanceof ProcessedSource) {
+			return ((ProcessedSource) file).getBinaryName();
+		}
+		return super.inferBinaryName(location, file);
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForInput(Location location, String className, Kind kind) throws IOException {
+		if (location == StandardLocation.SOURCE_PATH) {
+			return kind == Kind.SOURCE ? sources.get(className) : null;
+		}
+		return super.getJavaFileForInput(location, className, kind);
+	}
+
+	@Override
+	public boolean isSameFile(FileObject a, FileObject b) {
+		if (a instanceof ProcessedSource || b instanceof ProcessedSource) {
+			return a.toUri().equals(b.toUri());
+		}
+		return super.isSameFile(a, b);
+	}
+}
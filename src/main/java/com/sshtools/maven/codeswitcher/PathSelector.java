@@ -0,0 +1,102 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.codehaus.plexus.util.AbstractScanner;
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * Selects files by their path relative to a source directory, using the same
+ * include and exclude patterns as other Maven plugins. <code>*</code> matches
+ * any part of a name, <code>?</code> any single character, and
+ * <code>**</code> any number of directories, including none. A pattern ending
+ * with <code>/</code> matches everything below the directory. A file is
+ * selected if it matches any include, no exclude and none of the default
+ * excludes, such as version control files.
+ * <p>
+ * Instances are immutable and may be shared between threads.
+ */
+class PathSelector {
+
+	static final List<String> DEFAULT_INCLUDES = Arrays.asList("**/*.java");
+
+	private final String[] includes;
+	private final String[] excludes;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param includes include patterns, or <code>null</code> or empty for the
+	 *                 default of all Java source
+	 * @param excludes exclude patterns, may be <code>null</code>
+	 */
+	PathSelector(Collection<String> includes, Collection<String> excludes) {
+		this.includes = normalize(includes == null || includes.isEmpty() ? DEFAULT_INCLUDES : includes);
+		List<String> allExcludes = new ArrayList<String>();
+		if (excludes != null) {
+			allExcludes.addAll(excludes);
+		}
+		allExcludes.addAll(Arrays.asList(AbstractScanner.DEFAULTEXCLUDES));
+		this.excludes = normalize(allExcludes);
+	}
+
+	/**
+	 * Get whether a file is selected.
+	 *
+	 * @param path path relative to the source directory, using
+	 *             <code>/</code> as the separator
+	 * @return selected
+	 */
+	boolean isSelected(String path) {
+		return matches(includes, path) && !matches(excludes, path);
+	}
+
+	private static boolean matches(String[] patterns, String path) {
+		for (String pattern : patterns) {
+			if (SelectorUtils.matchPath(pattern, path, "/", true)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * As DirectoryScanner does, but with '/' as the separator, as that is
+	 * what paths are given with. Regular expressions are left as they are.
+	 */
+	private static String[] normalize(Collection<String> patterns) {
+		List<String> normalized = new ArrayList<String>();
+		for (String pattern : patterns) {
+			if (pattern == null || pattern.trim().length() == 0) {
+				continue;
+			}
+			pattern = pattern.trim();
+			if (!pattern.startsWith(SelectorUtils.REGEX_HANDLER_PREFIX)) {
+				pattern = pattern.replace('\\', '/');
+				if (pattern.endsWith("/")) {
+					pattern += "**";
+				}
+			}
+			normalized.add(pattern);
+		}
+		return normalized.toArray(new String[0]);
+	}
+}
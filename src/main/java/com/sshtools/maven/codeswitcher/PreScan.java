@@ -0,0 +1,217 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Decides from the raw bytes of a file whether it could possibly contain a
+ * directive or a token, without decoding or splitting it into lines. Files
+ * that cannot would come out of processing unchanged, so they can be skipped.
+ * <p>
+ * The scan is conservative. It may report that a file needs processing when
+ * it does not, but never the other way round. It is only used for character
+ * sets where ASCII characters are encoded as themselves.
+ */
+class PreScan {
+
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The largest buffer kept for a thread. Threads may live as long as the
+	 * JVM, such as those of an IDE or the shared pool, so a larger file is
+	 * read into a buffer of its own that is not kept.
+	 */
+	static final int MAX_KEPT_BUFFER_SIZE = 1024 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>();
+
+	private final boolean enabled;
+	private final byte[][][] keys = new byte[256][][];
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tokens  token keys, may be <code>null</code>
+	 * @param charset character set files are encoded in
+	 */
+	PreScan(Collection<String> tokens, Charset charset) {
+		enabled = isAsciiCompatible(charset);
+		if (tokens != null) {
+			List<List<byte[]>> byFirst = new ArrayList<List<byte[]>>(256);
+			for (int i = 0; i < 256; i++) {
+				byFirst.add(null);
+			}
+			for (String token : tokens) {
+				if (token == null || token.length() == 0) {
+					continue;
+				}
+				byte[] data = token.getBytes(charset);
+				int first = data[0] & 0xff;
+				if (byFirst.get(first) == null) {
+					byFirst.set(first, new ArrayList<byte[]>());
+				}
+				byFirst.get(first).add(data);
+			}
+			for (int i = 0; i < 256; i++) {
+				List<byte[]> l = byFirst.get(i);
+				if (l != null) {
+					keys[i] = l.toArray(new byte[0][]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the whole of a file into a buffer kept for the current thread, so
+	 * it may be scanned and then processed without being read again. The
+	 * buffer is only valid until the next call on the same thread. Files
+	 * larger than {@link #MAX_KEPT_BUFFER_SIZE} are read into a buffer that is
+	 * not kept.
+	 *
+	 * @param file file
+	 * @return data, or <code>null</code> if the character set is not ASCII
+	 *         compatible or the file is too large
+	 * @throws IOException on error
+	 */
+	ByteBuffer read(File file) throws IOException {
+		if (!enabled) {
+			return null;
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				return null;
+			}
+			/*
+			 * The file is read into a buffer kept per thread rather than mapped, as
+			 * a mapped file cannot be replaced on some platforms until the mapping
+			 * is garbage collected.
+			 */
+			ByteBuffer buf;
+			if (size > MAX_KEPT_BUFFER_SIZE) {
+				buf = ByteBuffer.allocate((int) size);
+			} else {
+				buf = BUFFER.get();
+				if (buf == null || buf.capacity() < size) {
+					buf = ByteBuffer.allocate(Math.max(INITIAL_BUFFER_SIZE, (int) size));
+					BUFFER.set(buf);
+				}
+			}
+			buf.clear();
+			buf.limit((int) size);
+			while (buf.hasRemaining() && channel.read(buf) != -1) {
+			}
+			buf.flip();
+			return buf;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Get whether the data may contain a directive or token and so must be
+	 * processed.
+	 *
+	 * @param data data
+	 * @return needs processing
+	 */
+	boolean needsProcessing(ByteBuffer data) {
+		int limit = data.limit();
+		for (int i = data.position(); i < limit; i++) {
+			int b = data.get(i) & 0xff;
+			if (b == '#' && isDirective(data, i)) {
+				return true;
+			}
+			byte[][] candidates = keys[b];
+			if (candidates != null) {
+				for (byte[] key : candidates) {
+					if (matches(data, i, key)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Directives are recognised after all white space is removed from a line,
+	 * so look back from the '#' for two '/', skipping white space. Any
+	 * non-ASCII byte is treated as if it might be white space.
+	 */
+	private static boolean isDirective(ByteBuffer data, int hash) {
+		int i = skipBack(data, hash - 1);
+		if (i < 0 || data.get(i) != '/') {
+			return false;
+		}
+		i = skipBack(data, i - 1);
+		return i >= 0 && data.get(i) == '/';
+	}
+
+	private static int skipBack(ByteBuffer data, int i) {
+		int start = data.position();
+		while (i >= start && isPossibleWhitespace(data.get(i) & 0xff)) {
+			i--;
+		}
+		return i < start ? -1 : i;
+	}
+
+	private static boolean isPossibleWhitespace(int b) {
+		return b == ' ' || (b >= 0x09 && b <= 0x0d) || (b >= 0x1c && b <= 0x1f) || b >= 0x80;
+	}
+
+	private static boolean matches(ByteBuffer data, int offset, byte[] key) {
+		if (offset + key.length > data.limit()) {
+			return false;
+		}
+		for (int i = 1; i < key.length; i++) {
+			if (data.get(offset + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean isAsciiCompatible(Charset charset) {
+		if (!charset.canEncode()) {
+			return false;
+		}
+		char[] ascii = new char[128];
+		for (int i = 0; i < ascii.length; i++) {
+			ascii[i] = (char) i;
+		}
+		byte[] encoded = new String(ascii).getBytes(charset);
+		if (encoded.length != ascii.length) {
+			return false;
+		}
+		for (int i = 0; i < encoded.length; i++) {
+			if (encoded[i] != i) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
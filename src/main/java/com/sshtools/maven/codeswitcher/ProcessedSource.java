@@ -0,0 +1,103 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * A source file processed into memory. The content is only held when
+ * processing changed it, otherwise it is read from the original file. Either
+ * way, the file object has the URI of the original, so any errors compiling
+ * it are reported against the original.
+ */
+class ProcessedSource extends SimpleJavaFileObject {
+
+	final File source;
+	final String path;
+	private final byte[] content;
+	private final Charset encoding;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param source   original file
+	 * @param path     path relative to the source directory, using
+	 *                 <code>/</code> as the separator
+	 * @param content  processed content, or <code>null</code> if the original
+	 *                 is unchanged
+	 * @param encoding character set of the content
+	 */
+	ProcessedSource(File source, String path, byte[] content, Charset encoding) {
+		super(source.toURI(), Kind.SOURCE);
+		this.source = source;
+		this.path = path;
+		this.content = content;
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Get whether processing changed the original.
+	 *
+	 * @return changed
+	 */
+	boolean isChanged() {
+		return content != null;
+	}
+
+	/**
+	 * Get the name of the package the source is in, going by its path.
+	 *
+	 * @return package name
+	 */
+	String getPackageName() {
+		int idx = path.lastIndexOf('/');
+		return idx == -1 ? "" : path.substring(0, idx).replace('/', '.');
+	}
+
+	/**
+	 * Get the binary name of the top level class the source declares, going
+	 * by its path.
+	 *
+	 * @return binary name
+	 */
+	String getBinaryName() {
+		String name = path.endsWith(Kind.SOURCE.extension)
+				? path.substring(0, path.length() - Kind.SOURCE.extension.length()) : path;
+		return name.replace('/', '.');
+	}
+
+	@Override
+	public InputStream openInputStream() throws IOException {
+		return content == null ? Files.newInputStream(source.toPath()) : new ByteArrayInputStream(content);
+	}
+
+	@Override
+	public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+		return new String(content == null ? Files.readAllBytes(source.toPath()) : content, encoding);
+	}
+
+	@Override
+	public long getLastModified() {
+		return source.lastModified();
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sshtools.maven.codeswitcher.CodeSwitcher.Switches;
+
+/**
+ * State shared by every switcher in the JVM that is set to share it, such as
+ * those of the modules of a reactor built in parallel. Switchers with the same
+ * symbols and tokens share their compiled form, and the directories of all of
+ * them are walked and their files processed on one bounded pool of threads. The number of threads then
+ * does not grow with the number of modules, and the files of a large module
+ * are spread over every thread once the smaller modules are done.
+ */
+final class SharedEngine {
+
+	private static final int MAX_CONFIGURATIONS = 32;
+	private static final int MAX_EXPRESSIONS = 10000;
+
+	private static final Map<String, List<Switches>> SWITCHES = new Lru<List<Switches>>();
+	private static final Map<String, PreScan> PRE_SCANS = new Lru<PreScan>();
+	private static final Map<String, Expression> EXPRESSIONS = new ConcurrentHashMap<String, Expression>();
+
+	private static ThreadPoolExecutor pool;
+
+	private SharedEngine() {
+	}
+
+	/**
+	 * Get the compiled variants of a configuration, compiling them with the
+	 * given switcher if no other has yet.
+	 *
+	 * @param key      hash of the configuration
+	 * @param switcher switcher to compile the variants if they are not shared
+	 *                 yet
+	 * @return compiled variants, which must not be modified
+	 */
+	static List<Switches> getSwitches(String key, CodeSwitcher switcher) {
+		synchronized (SWITCHES) {
+			List<Switches> switches = SWITCHES.get(key);
+			if (switches != null) {
+				return switches;
+			}
+		}
+		// Compiled outside the lock, the first to finish is kept
+		List<Switches> compiled = Collections.unmodifiableList(switcher.newVariants());
+		synchronized (SWITCHES) {
+			List<Switches> switches = SWITCHES.get(key);
+			if (switches == null) {
+				SWITCHES.put(key, compiled);
+				switches = compiled;
+			}
+			return switches;
+		}
+	}
+
+	/**
+	 * Get the pre-scan for a set of token keys.
+	 *
+	 * @param tokenKeys token keys
+	 * @param encoding  character set of the source
+	 * @return pre-scan
+	 */
+	static PreScan getPreScan(Set<String> tokenKeys, Charset encoding) {
+		StringBuilder key = new StringBuilder(encoding.name());
+		for (String tokenKey : new TreeSet<String>(tokenKeys)) {
+			key.append('\n').append(tokenKey.length()).append(':').append(tokenKey);
+		}
+		synchronized (PRE_SCANS) {
+			PreScan preScan = PRE_SCANS.get(key.toString());
+			if (preScan == null) {
+				preScan = new PreScan(tokenKeys, encoding);
+				PRE_SCANS.put(key.toString(), preScan);
+			}
+			return preScan;
+		}
+	}
+
+	/**
+	 * Get the expressions parsed so far, by their text. Expressions do not
+	 * depend on the configuration, so are shared by every switcher.
+	 *
+	 * @return expressions
+	 */
+	static Map<String, Expression> getExpressions() {
+		if (EXPRESSIONS.size() > MAX_EXPRESSIONS) {
+			EXPRESSIONS.clear();
+		}
+		return EXPRESSIONS;
+	}
+
+	/**
+	 * Get the pool directories are walked and files processed on, making
+	 * sure it has at least the given number of threads. Its threads are
+	 * daemons that end when idle, so the pool is never shut down.
+	 *
+	 * @param threads number of threads
+	 * @return pool
+	 */
+	static synchronized ExecutorService getPool(int threads) {
+		if (pool == null) {
+			final AtomicInteger count = new AtomicInteger();
+			pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "codeswitcher-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			pool.allowCoreThreadTimeOut(true);
+		} else if (pool.getMaximumPoolSize() < threads) {
+			pool.setMaximumPoolSize(threads);
+			pool.setCorePoolSize(threads);
+		}
+		return pool;
+	}
+
+	@SuppressWarnings("serial")
+	private static class Lru<V> extends LinkedHashMap<String, V> {
+		Lru() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+			return size() > MAX_CONFIGURATIONS;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static com.sshtools.maven.codeswitcher.CodeSwitcher.containsIgnoringSpaces;
+import static com.sshtools.maven.codeswitcher.CodeSwitcher.equalsIgnoringSpaces;
+import static com.sshtools.maven.codeswitcher.CodeSwitcher.matchKeyword;
+import static com.sshtools.maven.codeswitcher.CodeSwitcher.startsWithIgnoringSpaces;
+import static com.sshtools.maven.codeswitcher.CodeSwitcher.stripSpaces;
+
+/**
+ * A line of source, classified once as it is read so that every variant being
+ * produced from it can share the result. Directives are matched ignoring all
+ * white space, without building a stripped copy of the line, so new strings are
+ * only created for the argument of a directive.
+ */
+class SourceLine {
+
+	/* Directives */
+	static final int NONE = 0;
+	static final int SINGLE_LINE = 1;
+	static final int IF = 2;
+	static final int IFDEF = 3;
+	static final int ELSE = 4;
+	static final int ENDIF = 5;
+	static final int DEL = 6;
+
+	/* Comment syntax that is unwrapped inside a switched block */
+	static final int COMMENT_BOUNDARY = 1;
+	static final int COMMENT_STAR = 2;
+	static final int COMMENT_SLASHES = 3;
+
+	final String text;
+	final int directive;
+	final String argument;
+	final int comment;
+
+	private SourceLine(String text, int directive, String argument, int comment) {
+		this.text = text;
+		this.directive = directive;
+		this.argument = argument;
+		this.comment = comment;
+	}
+
+	/**
+	 * Classify a line.
+	 *
+	 * @param line line
+	 * @return classified line
+	 */
+	static SourceLine classify(String line) {
+		int comment = NONE;
+		if (equalsIgnoringSpaces(line, "/*") || equalsIgnoringSpaces(line, "*/")) {
+			comment = COMMENT_BOUNDARY;
+		} else if (startsWithIgnoringSpaces(line, "*")) {
+			comment = COMMENT_STAR;
+		} else if (startsWithIgnoringSpaces(line, "//") && !startsWithIgnoringSpaces(line, "//#")) {
+			comment = COMMENT_SLASHES;
+		}
+
+		int directive = NONE;
+		String argument = null;
+		int idx;
+		if (line.indexOf('#') != -1 && containsIgnoringSpaces(line, "//#")) {
+			if (startsWithIgnoringSpaces(line, "//#[")) {
+				directive = SINGLE_LINE;
+			} else if (startsWithIgnoringSpaces(line, "//#ifdef")) {
+				// Before 'if', so '//# if def X' is still 'ifdef X' as it always was
+				directive = IFDEF;
+				argument = stripSpaces(line).substring(8);
+			} else if ((idx = matchKeyword(line, "if")) != -1 && isExpression(line, idx)) {
+				directive = IF;
+				argument = line.substring(idx).trim();
+			} else if (startsWithIgnoringSpaces(line, "//#else")) {
+				directive = ELSE;
+			} else if (startsWithIgnoringSpaces(line, "//#endif")) {
+				directive = ENDIF;
+			} else if (startsWithIgnoringSpaces(line, "//#del")) {
+				directive = DEL;
+				argument = stripSpaces(line).substring(6);
+			}
+		}
+		return new SourceLine(line, directive, argument, comment);
+	}
+
+	/*
+	 * An 'if' is only a directive when an expression follows it, so a bare
+	 * '//#if', or '//#if' followed by something like '_', is not one, just as
+	 * before the directive existed.
+	 */
+	private static boolean isExpression(String line, int idx) {
+		if (idx == line.length()) {
+			return false;
+		}
+		char ch = line.charAt(idx);
+		if (!Character.isWhitespace(ch) && ch != '(' && ch != '!') {
+			return false;
+		}
+		for (int i = idx; i < line.length(); i++) {
+			if (!Character.isWhitespace(line.charAt(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,327 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Records the state of every source file at the time it was last
+ * pre-processed, along with a hash of the switch configuration that was used.
+ * Used to skip files whose inputs have not changed between builds.
+ * <p>
+ * The symbols each file refers to are recorded too, along with the state of
+ * every symbol and a hash of the rest of the configuration. When only symbols
+ * change, just the files that refer to them need to be processed again.
+ */
+class SourceManifest {
+
+	private static final String CONFIGURATION_KEY = "configuration";
+	private static final String BASE_CONFIGURATION_KEY = "baseConfiguration";
+	private static final String FILE_PREFIX = "file.";
+	private static final String SYMBOLS_PREFIX = "symbols.";
+	private static final String STATE_PREFIX = "state.";
+
+	/**
+	 * The recorded state of a single source file.
+	 */
+	static class Entry {
+		final long size;
+		final long lastModified;
+		final String hash;
+		final boolean volatileContent;
+		final Set<String> symbols;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param size            size
+		 * @param lastModified    modification time
+		 * @param hash            content hash
+		 * @param volatileContent whether the file uses the timestamp token
+		 * @param symbols         symbols the file refers to, or
+		 *                        <code>null</code> if not known
+		 */
+		Entry(long size, long lastModified, String hash, boolean volatileContent, Set<String> symbols) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.volatileContent = volatileContent;
+			this.symbols = symbols;
+		}
+
+		/**
+		 * Get whether the output of the file may be affected by a change to
+		 * some symbols.
+		 *
+		 * @param changed changed symbols
+		 * @return affected
+		 */
+		boolean isAffectedBy(Set<String> changed) {
+			return symbols == null || !Collections.disjoint(symbols, changed);
+		}
+
+		/**
+		 * Get if the provided file still matches this entry. The size and
+		 * modification time are checked first, and the content hash is only
+		 * calculated if the modification time differs.
+		 *
+		 * @param file file
+		 * @return up to date
+		 * @throws IOException on error
+		 */
+		boolean isUpToDate(File file) throws IOException {
+			if (volatileContent || file.length() != size) {
+				return false;
+			}
+			return file.lastModified() == lastModified || hash.equals(hash(file));
+		}
+
+		@Override
+		public String toString() {
+			return size + "," + lastModified + "," + hash + "," + volatileContent;
+		}
+
+		static Entry parse(String text, String symbols) {
+			String[] parts = text.split(",");
+			if (parts.length != 4) {
+				return null;
+			}
+			Set<String> symbolSet = null;
+			if (symbols != null) {
+				symbolSet = new TreeSet<String>();
+				for (String symbol : symbols.split(" ")) {
+					if (symbol.length() > 0) {
+						symbolSet.add(symbol);
+					}
+				}
+			}
+			try {
+				return new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2],
+						Boolean.parseBoolean(parts[3]), symbolSet);
+			} catch (NumberFormatException nfe) {
+				return null;
+			}
+		}
+	}
+
+	private final String configurationHash;
+	private final String baseConfigurationHash;
+	private final Map<String, String> symbolStates;
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param configurationHash     hash of the whole configuration
+	 * @param baseConfigurationHash hash of the configuration other than the
+	 *                              state of symbols
+	 * @param symbolStates          state of each symbol, keyed by the symbol
+	 *                              and variant
+	 */
+	SourceManifest(String configurationHash, String baseConfigurationHash, Map<String, String> symbolStates) {
+		this.configurationHash = configurationHash;
+		this.baseConfigurationHash = baseConfigurationHash;
+		this.symbolStates = new TreeMap<String, String>(symbolStates);
+	}
+
+	/**
+	 * Get the hash of the configuration that produced this manifest.
+	 *
+	 * @return configuration hash
+	 */
+	String getConfigurationHash() {
+		return configurationHash;
+	}
+
+	/**
+	 * Get the symbols whose state is different in another manifest, when
+	 * nothing else about the configuration is different.
+	 *
+	 * @param previous previous manifest
+	 * @return changed symbols, or <code>null</code> if anything else about
+	 *         the configuration has changed
+	 */
+	Set<String> getChangedSymbols(SourceManifest previous) {
+		if (baseConfigurationHash.length() == 0 || !baseConfigurationHash.equals(previous.baseConfigurationHash)) {
+			return null;
+		}
+		Set<String> keys = new TreeSet<String>(symbolStates.keySet());
+		keys.addAll(previous.symbolStates.keySet());
+		Set<String> changed = new TreeSet<String>();
+		for (String key : keys) {
+			String state = symbolStates.get(key);
+			if (state == null ? previous.symbolStates.get(key) != null : !state.equals(previous.symbolStates.get(key))) {
+				changed.add(key.substring(key.indexOf('/') + 1));
+			}
+		}
+		return changed;
+	}
+
+	Entry get(String path) {
+		return entries.get(path);
+	}
+
+	void put(String path, Entry entry) {
+		entries.put(path, entry);
+	}
+
+	Set<String> getPaths() {
+		return entries.keySet();
+	}
+
+	/**
+	 * Load a manifest from a file. If the file does not exist or cannot be
+	 * read, an empty manifest is returned, meaning everything will be
+	 * processed.
+	 *
+	 * @param file manifest file
+	 * @return manifest
+	 */
+	static SourceManifest load(File file) {
+		Properties properties = new Properties();
+		if (file.exists()) {
+			try {
+				InputStream in = new FileInputStream(file);
+				try {
+					properties.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException ioe) {
+				properties.clear();
+			}
+		}
+		Map<String, String> states = new TreeMap<String, String>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(STATE_PREFIX)) {
+				states.put(key.substring(STATE_PREFIX.length()), properties.getProperty(key));
+			}
+		}
+		SourceManifest manifest = new SourceManifest(properties.getProperty(CONFIGURATION_KEY, ""),
+				properties.getProperty(BASE_CONFIGURATION_KEY, ""), states);
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(FILE_PREFIX)) {
+				String path = key.substring(FILE_PREFIX.length());
+				Entry entry = Entry.parse(properties.getProperty(key), properties.getProperty(SYMBOLS_PREFIX + path));
+				if (entry != null) {
+					manifest.put(path, entry);
+				}
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Save the manifest to a file, creating any parent directories.
+	 *
+	 * @param file manifest file
+	 * @throws IOException on error
+	 */
+	void save(File file) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(CONFIGURATION_KEY, configurationHash);
+		properties.setProperty(BASE_CONFIGURATION_KEY, baseConfigurationHash);
+		for (Map.Entry<String, String> en : symbolStates.entrySet()) {
+			properties.setProperty(STATE_PREFIX + en.getKey(), en.getValue());
+		}
+		for (Map.Entry<String, Entry> en : entries.entrySet()) {
+			properties.setProperty(FILE_PREFIX + en.getKey(), en.getValue().toString());
+			Set<String> symbols = en.getValue().symbols;
+			if (symbols != null) {
+				StringBuilder b = new StringBuilder();
+				for (String symbol : symbols) {
+					if (b.length() > 0) {
+						b.append(' ');
+					}
+					b.append(symbol);
+				}
+				properties.setProperty(SYMBOLS_PREFIX + en.getKey(), b.toString());
+			}
+		}
+		File dir = file.getParentFile();
+		if (dir != null && !dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Failed to create directory " + dir);
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, "Codeswitcher source manifest");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Calculate the hex encoded SHA-1 hash of a file's contents.
+	 *
+	 * @param file file
+	 * @return hash
+	 * @throws IOException on error
+	 */
+	static String hash(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[65536];
+			int r;
+			while ((r = in.read(buf)) != -1) {
+				digest.update(buf, 0, r);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Calculate the hex encoded SHA-1 hash of some bytes.
+	 *
+	 * @param data data
+	 * @return hash
+	 */
+	static String hash(byte[] data) {
+		return toHex(newDigest().digest(data));
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available.", e);
+		}
+	}
+
+	private static String toHex(byte[] data) {
+		StringBuilder b = new StringBuilder(data.length * 2);
+		for (byte d : data) {
+			b.append(Character.forDigit((d >> 4) & 0xf, 16));
+			b.append(Character.forDigit(d & 0xf, 16));
+		}
+		return b.toString();
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+/**
+ * A directory of source to pre-process in addition to the source directory.
+ * 
+ */
+public class SourceRoot {
+	/**
+	 * The directory of source.
+	 * 
+	 * @parameter sourceRoot
+	 */
+	public String directory;
+	/**
+	 * The directory to write the pre-processed source to. Defaults to a
+	 * directory next to the temporary directory, named after the path of
+	 * the source directory. The directory must not be used for anything
+	 * else, as when <code>cacheKey</code> is set, any file in it that does not
+	 * come from the source is removed.
+	 * 
+	 * @parameter sourceRoot
+	 */
+	public String outputDirectory;
+	/**
+	 * Whether this is test source.
+	 * 
+	 * @parameter sourceRoot
+	 */
+	public boolean test;
+
+}
@@ -0,0 +1,185 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+/**
+ * A directory of source, and the directories the result for each variant is
+ * written to. Files are found as the tree is walked, so they can be processed
+ * while the rest of the tree is still being walked, and the whole list of
+ * files is never held. The tree may be split at its top level, so that each
+ * directory there can be walked on its own thread.
+ */
+class SourceTree {
+
+	/**
+	 * Receives each file found.
+	 */
+	interface Visitor {
+		/**
+		 * Visit a file.
+		 *
+		 * @param source  file
+		 * @param targets where the result for each variant is written
+		 * @param path    path relative to the tree, using <code>/</code> as
+		 *                the separator
+		 * @throws IOException    on error
+		 * @throws ParseException on error
+		 */
+		void visit(File source, File[] targets, String path) throws IOException, ParseException;
+	}
+
+	final File directory;
+	final File[] targets;
+	final Collection<JavaFileObject> memory;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory directory
+	 * @param targets   target directories, or just the directory itself to
+	 *                  process files in place
+	 */
+	SourceTree(File directory, File... targets) {
+		this.directory = directory;
+		this.targets = targets;
+		memory = null;
+	}
+
+	/**
+	 * Constructor for a tree whose single variant is processed into memory.
+	 *
+	 * @param directory directory
+	 * @param memory    receives the processed source
+	 */
+	SourceTree(File directory, Collection<JavaFileObject> memory) {
+		this.directory = directory;
+		this.memory = memory;
+		targets = new File[1];
+	}
+
+	boolean isInPlace() {
+		return targets.length == 1 && directory.equals(targets[0]);
+	}
+
+	/**
+	 * Visit the files at the top level of the tree, and get the directories
+	 * there, each of which may then be walked separately.
+	 *
+	 * @param visitor visitor
+	 * @return directories
+	 * @throws IOException    on error
+	 * @throws ParseException on error
+	 */
+	List<Path> split(Visitor visitor) throws IOException, ParseException {
+		List<Path> directories = new ArrayList<Path>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath());
+		try {
+			for (Path path : stream) {
+				if (Files.isDirectory(path)) {
+					directories.add(path);
+				} else {
+					visit(visitor, path);
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		return directories;
+	}
+
+	/**
+	 * Walk the whole tree, or part of it.
+	 *
+	 * @param start   directory in the tree to start from
+	 * @param visitor visitor
+	 * @throws IOException    on error
+	 * @throws ParseException on error
+	 */
+	void walk(Path start, final Visitor visitor) throws IOException, ParseException {
+		final ParseException[] failure = new ParseException[1];
+		Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+				new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+						if (attrs.isDirectory()) {
+							return FileVisitResult.CONTINUE;
+						}
+						try {
+							visit(visitor, file);
+						} catch (ParseException e) {
+							failure[0] = e;
+							return FileVisitResult.TERMINATE;
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+
+	/**
+	 * Get the path of a file in the tree relative to the tree.
+	 *
+	 * @param file file
+	 * @return path, using <code>/</code> as the separator
+	 */
+	String getPath(Path file) {
+		String path = directory.toPath().relativize(file).toString();
+		if (File.separatorChar != '/') {
+			path = path.replace(File.separatorChar, '/');
+		}
+		return path;
+	}
+
+	/**
+	 * Get where the result for each variant of a file in the tree is written.
+	 *
+	 * @param source file
+	 * @param path   path relative to the tree
+	 * @return targets
+	 */
+	File[] getTargets(File source, String path) {
+		File[] fileTargets = new File[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			fileTargets[i] = isInPlace() ? source : new File(targets[i], path);
+		}
+		return fileTargets;
+	}
+
+	private void visit(Visitor visitor, Path file) throws IOException, ParseException {
+		String path = getPath(file);
+		File source = file.toFile();
+		visitor.visit(source, getTargets(source, path), path);
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directories of source a {@link CodeSwitcher} has processed, and
+ * processes each file again as soon as it is created or changed, using the
+ * symbols, tokens and variants the switcher was configured with. The outputs
+ * of deleted files are deleted. New directories are watched as they appear.
+ * <p>
+ * Changes are collected until the tree has been quiet for a short while, so a
+ * file that is saved several times in quick succession, or a directory that
+ * is copied in, is only processed once.
+ */
+class SourceWatcher implements Closeable {
+
+	private static final long QUIET_MS = 50;
+
+	private final CodeSwitcher switcher;
+	private final WatchService service;
+	private final Map<WatchKey, Watched> keys = new HashMap<WatchKey, Watched>();
+	private final Set<Path> directories = new HashSet<Path>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param switcher switcher, which must already have processed the trees
+	 * @param trees    directories to watch
+	 * @throws IOException on error
+	 */
+	SourceWatcher(CodeSwitcher switcher, List<SourceTree> trees) throws IOException {
+		this.switcher = switcher;
+		service = FileSystems.getDefault().newWatchService();
+		try {
+			for (SourceTree tree : trees) {
+				register(tree, tree.directory.toPath());
+			}
+		} catch (IOException e) {
+			service.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Process changes as they happen until the thread is interrupted or the
+	 * watcher is closed.
+	 *
+	 * @throws InterruptedException if interrupted
+	 * @throws IOException          on error
+	 */
+	void watch() throws InterruptedException, IOException {
+		switcher.printMessage(null, 0, "Watching " + directories.size() + " directory(s) for changes.");
+		for (;;) {
+			WatchKey key = service.take();
+			Map<Path, SourceTree> changed = new LinkedHashMap<Path, SourceTree>();
+			Set<SourceTree> rescan = new LinkedHashSet<SourceTree>();
+			do {
+				collect(key, changed, rescan);
+				key = service.poll(QUIET_MS, TimeUnit.MILLISECONDS);
+			} while (key != null);
+
+			long started = System.nanoTime();
+			int[] counts = new int[2];
+			for (SourceTree tree : rescan) {
+				switcher.printMessage(null, 0, "Too many changes in " + tree.directory + ", checking all files.");
+				update(tree, tree.directory.toPath(), counts);
+			}
+			for (Map.Entry<Path, SourceTree> entry : changed.entrySet()) {
+				if (!rescan.contains(entry.getValue())) {
+					update(entry.getValue(), entry.getKey(), counts);
+				}
+			}
+			if (counts[0] > 0 || counts[1] > 0) {
+				switcher.printMessage(null, 0, String.format("%d file(s) processed, %d deleted in %d ms.", counts[0],
+						counts[1], TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)));
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		service.close();
+	}
+
+	/*
+	 * Only the paths are collected, in the order they first changed. Whether
+	 * each was created, changed or deleted is decided from what is there once
+	 * the tree is quiet.
+	 */
+	private void collect(WatchKey key, Map<Path, SourceTree> changed, Set<SourceTree> rescan) {
+		Watched watched = keys.get(key);
+		if (watched != null) {
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					rescan.add(watched.tree);
+				} else if (event.context() instanceof Path) {
+					Path path = watched.directory.resolve((Path) event.context());
+					if (!changed.containsKey(path)) {
+						changed.put(path, watched.tree);
+					}
+				}
+			}
+		}
+		if (!key.reset()) {
+			// The directory has gone
+			keys.remove(key);
+			if (watched != null) {
+				directories.remove(watched.directory);
+			}
+		}
+	}
+
+	private void update(final SourceTree tree, Path path, final int[] counts) throws IOException {
+		if (Files.isDirectory(path)) {
+			/*
+			 * A directory that is already watched reports the changes to its own
+			 * files, so only new directories need to be walked.
+			 */
+			if (directories.contains(path) && !path.equals(tree.directory.toPath())) {
+				return;
+			}
+			register(tree, path);
+			try {
+				tree.walk(path, new SourceTree.Visitor() {
+					@Override
+					public void visit(File source, File[] targets, String relativePath) {
+						if (process(tree, source)) {
+							counts[0]++;
+						}
+					}
+				});
+			} catch (ParseException e) {
+				// Reported as each file is processed
+			}
+		} else if (Files.isRegularFile(path)) {
+			if (process(tree, path.toFile())) {
+				counts[0]++;
+			}
+		} else if (!Files.exists(path) && !tree.isInPlace()) {
+			File source = path.toFile();
+			boolean deleted = false;
+			for (File target : tree.getTargets(source, tree.getPath(path))) {
+				deleted |= delete(target.toPath());
+			}
+			if (deleted) {
+				counts[1]++;
+			}
+		}
+	}
+
+	/*
+	 * Errors are reported by the switcher, then watching carries on, so a file
+	 * that is part way through being edited does not end the session.
+	 */
+	private boolean process(SourceTree tree, File source) {
+		try {
+			return switcher.update(tree, source);
+		} catch (ParseException e) {
+			return false;
+		}
+	}
+
+	private void register(final SourceTree tree, Path start) throws IOException {
+		Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+				new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+						if (directories.add(dir)) {
+							keys.put(dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE),
+									new Watched(tree, dir));
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+	}
+
+	private static boolean delete(Path path) throws IOException {
+		if (Files.isDirectory(path)) {
+			Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+					if (exc != null) {
+						throw exc;
+					}
+					Files.delete(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			return true;
+		}
+		return Files.deleteIfExists(path);
+	}
+
+	private static class Watched {
+		final SourceTree tree;
+		final Path directory;
+
+		Watched(SourceTree tree, Path directory) {
+			this.tree = tree;
+			this.directory = directory;
+		}
+	}
+}
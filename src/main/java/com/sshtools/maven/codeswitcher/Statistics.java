@@ -0,0 +1,252 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings collected over a pre-processing run, and written as a
+ * JSON or CSV report. Counters may be updated from several threads at once.
+ * <p>
+ * Times are summed over all threads. Discovery is the time spent walking
+ * source directories and checking what has changed, but not processing the
+ * files found, so when directories are walked on several threads it may add
+ * up to more than the wall time.
+ */
+class Statistics {
+
+	private static final Comparator<FileTime> FASTEST_FIRST = new Comparator<FileTime>() {
+		@Override
+		public int compare(FileTime o1, FileTime o2) {
+			return Long.compare(o1.nanos, o2.nanos);
+		}
+	};
+
+	/**
+	 * The time taken to process a single file.
+	 */
+	static class FileTime {
+		final File file;
+		final long nanos;
+
+		FileTime(File file, long nanos) {
+			this.file = file;
+			this.nanos = nanos;
+		}
+	}
+
+	final AtomicLong discoveryNanos = new AtomicLong();
+	final AtomicLong copyNanos = new AtomicLong();
+	final AtomicLong parseNanos = new AtomicLong();
+	final AtomicLong replaceNanos = new AtomicLong();
+	final AtomicLong writeNanos = new AtomicLong();
+	final AtomicLong totalNanos = new AtomicLong();
+
+	final AtomicLong scanned = new AtomicLong();
+	final AtomicLong skipped = new AtomicLong();
+	final AtomicLong unchanged = new AtomicLong();
+	final AtomicLong changed = new AtomicLong();
+	final AtomicLong deleted = new AtomicLong();
+	final AtomicLong bytesRead = new AtomicLong();
+	final AtomicLong bytesWritten = new AtomicLong();
+	final AtomicLong linesRemoved = new AtomicLong();
+
+	private final int slowestCount;
+	private final PriorityQueue<FileTime> slowest;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param slowestCount number of slowest files to keep
+	 */
+	Statistics(int slowestCount) {
+		this.slowestCount = slowestCount;
+		slowest = new PriorityQueue<FileTime>(Math.max(1, slowestCount), FASTEST_FIRST);
+	}
+
+	/**
+	 * Record the time taken to process a file, keeping it if it is one of the
+	 * slowest.
+	 *
+	 * @param file  file
+	 * @param nanos time taken
+	 */
+	void file(File file, long nanos) {
+		if (slowestCount < 1) {
+			return;
+		}
+		synchronized (slowest) {
+			if (slowest.size() < slowestCount) {
+				slowest.add(new FileTime(file, nanos));
+			} else if (slowest.peek().nanos < nanos) {
+				slowest.poll();
+				slowest.add(new FileTime(file, nanos));
+			}
+		}
+	}
+
+	/**
+	 * Get the slowest files, slowest first.
+	 *
+	 * @return slowest files
+	 */
+	List<FileTime> getSlowest() {
+		List<FileTime> l;
+		synchronized (slowest) {
+			l = new ArrayList<FileTime>(slowest);
+		}
+		Collections.sort(l, Collections.reverseOrder(FASTEST_FIRST));
+		return l;
+	}
+
+	/**
+	 * Get a single line summary, suitable for the build log.
+	 *
+	 * @return summary
+	 */
+	String getSummary() {
+		return String.format(
+				"Pre-processed in %d ms (discovery %d ms, copy %d ms, parse %d ms, replace %d ms, write %d ms). "
+						+ "%d scanned, %d skipped, %d unchanged, %d changed, %d deleted. "
+						+ "%d bytes read, %d written, %d lines removed.",
+				millis(totalNanos), millis(discoveryNanos), millis(copyNanos), millis(parseNanos),
+				millis(replaceNanos), millis(writeNanos), scanned.get(), skipped.get(), unchanged.get(),
+				changed.get(), deleted.get(), bytesRead.get(), bytesWritten.get(), linesRemoved.get());
+	}
+
+	/**
+	 * Write the report as JSON.
+	 *
+	 * @param file file to write to
+	 * @throws IOException on error
+	 */
+	void writeJson(File file) throws IOException {
+		PrintWriter w = open(file);
+		try {
+			w.println("{");
+			w.println("  \"phases\": {");
+			w.println("    \"total\": " + millis(totalNanos) + ",");
+			w.println("    \"discovery\": " + millis(discoveryNanos) + ",");
+			w.println("    \"copy\": " + millis(copyNanos) + ",");
+			w.println("    \"parse\": " + millis(parseNanos) + ",");
+			w.println("    \"replace\": " + millis(replaceNanos) + ",");
+			w.println("    \"write\": " + millis(writeNanos));
+			w.println("  },");
+			w.println("  \"files\": {");
+			w.println("    \"scanned\": " + scanned.get() + ",");
+			w.println("    \"skipped\": " + skipped.get() + ",");
+			w.println("    \"unchanged\": " + unchanged.get() + ",");
+			w.println("    \"changed\": " + changed.get() + ",");
+			w.println("    \"deleted\": " + deleted.get());
+			w.println("  },");
+			w.println("  \"bytesRead\": " + bytesRead.get() + ",");
+			w.println("  \"bytesWritten\": " + bytesWritten.get() + ",");
+			w.println("  \"linesRemoved\": " + linesRemoved.get() + ",");
+			w.print("  \"slowest\": [");
+			List<FileTime> l = getSlowest();
+			for (int i = 0; i < l.size(); i++) {
+				FileTime t = l.get(i);
+				w.println(i == 0 ? "" : ",");
+				w.print("    { \"file\": \"" + escapeJson(t.file.getPath()) + "\", \"ms\": "
+						+ TimeUnit.NANOSECONDS.toMillis(t.nanos) + " }");
+			}
+			w.println(l.isEmpty() ? "]" : "\n  ]");
+			w.println("}");
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * Write the report as CSV, one metric per row. The slowest files follow
+	 * as rows named <code>slowest</code>.
+	 *
+	 * @param file file to write to
+	 * @throws IOException on error
+	 */
+	void writeCsv(File file) throws IOException {
+		PrintWriter w = open(file);
+		try {
+			w.println("metric,value,file");
+			w.println("phase.total.ms," + millis(totalNanos) + ",");
+			w.println("phase.discovery.ms," + millis(discoveryNanos) + ",");
+			w.println("phase.copy.ms," + millis(copyNanos) + ",");
+			w.println("phase.parse.ms," + millis(parseNanos) + ",");
+			w.println("phase.replace.ms," + millis(replaceNanos) + ",");
+			w.println("phase.write.ms," + millis(writeNanos) + ",");
+			w.println("files.scanned," + scanned.get() + ",");
+			w.println("files.skipped," + skipped.get() + ",");
+			w.println("files.unchanged," + unchanged.get() + ",");
+			w.println("files.changed," + changed.get() + ",");
+			w.println("files.deleted," + deleted.get() + ",");
+			w.println("bytes.read," + bytesRead.get() + ",");
+			w.println("bytes.written," + bytesWritten.get() + ",");
+			w.println("lines.removed," + linesRemoved.get() + ",");
+			for (FileTime t : getSlowest()) {
+				w.println("slowest.ms," + TimeUnit.NANOSECONDS.toMillis(t.nanos) + "," + escapeCsv(t.file.getPath()));
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	private static PrintWriter open(File file) throws IOException {
+		File dir = file.getParentFile();
+		if (dir != null && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Failed to create directory " + dir);
+		}
+		return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+	}
+
+	private static long millis(AtomicLong nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+	}
+
+	static String escapeJson(String text) {
+		StringBuilder b = new StringBuilder(text.length() + 8);
+		for (int i = 0; i < text.length(); i++) {
+			char ch = text.charAt(i);
+			if (ch == '"' || ch == '\\') {
+				b.append('\\').append(ch);
+			} else if (ch < 0x20) {
+				b.append(String.format("\\u%04x", (int) ch));
+			} else {
+				b.append(ch);
+			}
+		}
+		return b.toString();
+	}
+
+	static String escapeCsv(String text) {
+		if (text.indexOf(',') == -1 && text.indexOf('"') == -1 && text.indexOf('\n') == -1
+				&& text.indexOf('\r') == -1) {
+			return text;
+		}
+		return "\"" + text.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The enabled and disabled symbols, compiled so that each symbol is given an
+ * id and its state is looked up in a bit set. A symbol that is neither enabled
+ * nor disabled is unknown, and code that depends on it is left as is. If a
+ * symbol is both enabled and disabled, it is enabled.
+ * <p>
+ * Instances are immutable once built and may be shared between threads.
+ */
+class SymbolTable {
+
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final BitSet enabled = new BitSet();
+	private final BitSet disabled = new BitSet();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param enabledSymbols  enabled symbols
+	 * @param disabledSymbols disabled symbols
+	 */
+	SymbolTable(Collection<String> enabledSymbols, Collection<String> disabledSymbols) {
+		for (String symbol : disabledSymbols) {
+			disabled.set(intern(symbol));
+		}
+		for (String symbol : enabledSymbols) {
+			int id = intern(symbol);
+			enabled.set(id);
+			disabled.clear(id);
+		}
+	}
+
+	/**
+	 * Get the id of a symbol, or -1 if it is neither enabled nor disabled.
+	 *
+	 * @param symbol symbol
+	 * @return id
+	 */
+	int id(String symbol) {
+		Integer id = ids.get(symbol);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Get the state of a symbol by its id.
+	 *
+	 * @param id id, or -1 for an unknown symbol
+	 * @return {@link Boolean#TRUE} if enabled, {@link Boolean#FALSE} if
+	 *         disabled, or <code>null</code> if unknown
+	 */
+	Boolean get(int id) {
+		if (id < 0) {
+			return null;
+		}
+		return enabled.get(id) ? Boolean.TRUE : (disabled.get(id) ? Boolean.FALSE : null);
+	}
+
+	/**
+	 * Get the state of a symbol.
+	 *
+	 * @param symbol symbol
+	 * @return {@link Boolean#TRUE} if enabled, {@link Boolean#FALSE} if
+	 *         disabled, or <code>null</code> if unknown
+	 */
+	Boolean get(String symbol) {
+		return get(id(symbol));
+	}
+
+	boolean isEnabled(String symbol) {
+		return Boolean.TRUE.equals(get(symbol));
+	}
+
+	boolean isDisabled(String symbol) {
+		return Boolean.FALSE.equals(get(symbol));
+	}
+
+	private int intern(String symbol) {
+		Integer id = ids.get(symbol);
+		if (id == null) {
+			id = ids.size();
+			ids.put(symbol, id);
+		}
+		return id;
+	}
+}
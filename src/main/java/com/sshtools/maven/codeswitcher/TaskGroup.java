@@ -0,0 +1,86 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The tasks of one run submitted to an executor, which may be shared with
+ * other runs. Closing the group cancels only its own tasks that have not
+ * finished, and shuts the executor down only if the group owns it.
+ */
+class TaskGroup implements Closeable {
+
+	private final ExecutorService executor;
+	private final boolean owned;
+	private final Set<Future<?>> pending = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>());
+	private volatile boolean closed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executor executor
+	 * @param owned    whether to shut the executor down when closed
+	 */
+	TaskGroup(ExecutorService executor, boolean owned) {
+		this.executor = executor;
+		this.owned = owned;
+	}
+
+	/**
+	 * Submit a task.
+	 *
+	 * @param task task
+	 * @return future result
+	 * @throws RejectedExecutionException if the group is closed
+	 */
+	<T> Future<T> submit(Callable<T> task) {
+		if (closed) {
+			throw new RejectedExecutionException("The tasks have been cancelled.");
+		}
+		FutureTask<T> future = new FutureTask<T>(task) {
+			@Override
+			protected void done() {
+				pending.remove(this);
+			}
+		};
+		pending.add(future);
+		executor.execute(future);
+		if (closed) {
+			future.cancel(true);
+		}
+		return future;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		for (Future<?> future : pending) {
+			future.cancel(true);
+		}
+		if (owned) {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -32,5 +32,23 @@ public class Token {
 	 * @parameter token
 	 */
 	public String value;
+	/**
+	 * When set, and a <code>constantsClass</code> is configured, the value is
+	 * written once to that class, and the key is replaced with a reference to
+	 * the constant. Use for values that change on every build, so that only
+	 * the constants class changes. The value must be a Java expression.
+	 * 
+	 * @parameter token
+	 */
+	public boolean constant;
+	/**
+	 * The Java type of the constant. If not set, it is inferred from the
+	 * value, which may be a <code>boolean</code>, <code>int</code>,
+	 * <code>long</code>, <code>double</code>, <code>char</code> or
+	 * <code>String</code> literal.
+	 * 
+	 * @parameter token
+	 */
+	public String type;
 
 }
\ No newline at end of file
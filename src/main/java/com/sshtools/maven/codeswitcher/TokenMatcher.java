@@ -0,0 +1,212 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Replaces every occurrence of a set of tokens in a single pass over the text,
+ * using an Aho-Corasick automaton compiled once from the token map.
+ * <p>
+ * Where keys overlap, the match that starts leftmost wins, and of those that
+ * start at the same position the longest wins. Replaced text is never scanned
+ * again, so a value that contains another key is inserted as is.
+ * <p>
+ * Instances are immutable once built and may be shared between threads.
+ */
+class TokenMatcher {
+
+	private static final int ASCII = 128;
+
+	private static class Node {
+		private char[] chars = new char[0];
+		private Node[] next = new Node[0];
+		private Node[] ascii;
+		private Node fail;
+		private int depth;
+		/* Length of the longest key that is a suffix of this node, or 0 */
+		private int matchLength;
+		/* Value of the key ending exactly at this node, if any */
+		private String value;
+		/* Node reached by following fail links to the longest matching key */
+		private Node match;
+
+		Node get(char ch) {
+			if (ascii != null && ch < ASCII) {
+				return ascii[ch];
+			}
+			int idx = Arrays.binarySearch(chars, ch);
+			return idx < 0 ? null : next[idx];
+		}
+
+		Node add(char ch) {
+			int idx = Arrays.binarySearch(chars, ch);
+			if (idx >= 0) {
+				return next[idx];
+			}
+			idx = -idx - 1;
+			Node node = new Node();
+			node.depth = depth + 1;
+			char[] newChars = new char[chars.length + 1];
+			Node[] newNext = new Node[next.length + 1];
+			System.arraycopy(chars, 0, newChars, 0, idx);
+			System.arraycopy(next, 0, newNext, 0, idx);
+			newChars[idx] = ch;
+			newNext[idx] = node;
+			System.arraycopy(chars, idx, newChars, idx + 1, chars.length - idx);
+			System.arraycopy(next, idx, newNext, idx + 1, next.length - idx);
+			chars = newChars;
+			next = newNext;
+			return node;
+		}
+	}
+
+	private final Node root = new Node();
+	private final int size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tokens map of keys to replacement values, may be
+	 *               <code>null</code>. Empty keys are ignored.
+	 */
+	TokenMatcher(Map<String, String> tokens) {
+		int count = 0;
+		if (tokens != null) {
+			for (Map.Entry<String, String> en : tokens.entrySet()) {
+				String key = en.getKey();
+				if (key == null || key.length() == 0) {
+					continue;
+				}
+				Node node = root;
+				for (int i = 0; i < key.length(); i++) {
+					node = node.add(key.charAt(i));
+				}
+				node.value = en.getValue() == null ? "" : en.getValue();
+				node.matchLength = key.length();
+				count++;
+			}
+		}
+		size = count;
+		link();
+	}
+
+	/**
+	 * Get the number of tokens in the matcher.
+	 *
+	 * @return number of tokens
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Replace all tokens in the provided text. If no tokens are found, the
+	 * same instance is returned.
+	 *
+	 * @param text text
+	 * @return text with tokens replaced
+	 */
+	String replace(String text) {
+		if (size == 0) {
+			return text;
+		}
+		StringBuilder out = null;
+		int copied = 0;
+		int pos = 0;
+		int len = text.length();
+		while (pos < len) {
+			Node state = root;
+			int bestStart = -1;
+			int bestEnd = -1;
+			Node best = null;
+			int i = pos;
+			for (; i < len; i++) {
+				char ch = text.charAt(i);
+				Node n;
+				while ((n = state.get(ch)) == null && state != root) {
+					state = state.fail;
+				}
+				state = n == null ? root : n;
+
+				if (bestStart != -1 && i - state.depth + 1 > bestStart) {
+					// No longer match can start at or before the current best
+					break;
+				}
+				if (state.matchLength > 0) {
+					int start = i - state.matchLength + 1;
+					if (bestStart == -1 || start < bestStart || (start == bestStart && i + 1 > bestEnd)) {
+						bestStart = start;
+						bestEnd = i + 1;
+						best = state.match;
+					}
+				}
+			}
+			if (best == null) {
+				break;
+			}
+			if (out == null) {
+				out = new StringBuilder(len + 16);
+			}
+			out.append(text, copied, bestStart);
+			out.append(best.value);
+			copied = bestEnd;
+			pos = bestEnd;
+		}
+		if (out == null) {
+			return text;
+		}
+		out.append(text, copied, len);
+		return out.toString();
+	}
+
+	private void link() {
+		LinkedList<Node> queue = new LinkedList<Node>();
+		root.fail = root;
+		for (Node child : root.next) {
+			child.fail = root;
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			Node node = queue.removeFirst();
+			if (node.value != null) {
+				node.match = node;
+			} else {
+				node.matchLength = node.fail.matchLength;
+				node.match = node.fail.match;
+			}
+			for (int i = 0; i < node.chars.length; i++) {
+				char ch = node.chars[i];
+				Node child = node.next[i];
+				Node f = node.fail;
+				Node n;
+				while ((n = f.get(ch)) == null && f != root) {
+					f = f.fail;
+				}
+				child.fail = n == null || n == child ? root : n;
+				queue.add(child);
+			}
+		}
+
+		// Most characters fail at the root, so give it a direct lookup table
+		root.ascii = new Node[ASCII];
+		for (int i = 0; i < root.chars.length && root.chars[i] < ASCII; i++) {
+			root.ascii[root.chars[i]] = root.next[i];
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+/**
+ * A variant of the pre-processed source. Every variant is produced from a
+ * single pass over the source, each with its own symbols and tokens in
+ * addition to those configured for the plugin.
+ * 
+ */
+public class Variant {
+	/**
+	 * The name of the variant.
+	 * 
+	 * @parameter variant
+	 */
+	public String name;
+	/**
+	 * The list of symbols whose code will be enabled in this variant.
+	 * 
+	 * @parameter variant
+	 */
+	public String[] enable;
+	/**
+	 * The list of symbols whose code will be disabled in this variant.
+	 * 
+	 * @parameter variant
+	 */
+	public String[] disable;
+	/**
+	 * List of tokens that will be replaced in this variant.
+	 * 
+	 * @parameter variant
+	 */
+	public Token[] tokens;
+	/**
+	 * The directory to write this variant to. Defaults to a directory with the
+	 * name of the variant inside the temporary directory. The directory must
+	 * not be used for anything else, as when <code>cacheKey</code> is set,
+	 * any file in it that does not come from the source is removed.
+	 * 
+	 * @parameter variant
+	 */
+	public String outputDirectory;
+
+}
@@ -0,0 +1,48 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+
+/**
+ * Pre-processes the source as <code>pre-process</code> does, then keeps
+ * running and processes each file again as soon as it is created or changed,
+ * until the build is interrupted. The configuration is only read once, so
+ * Maven does not have to be started again after every edit.
+ */
+@Mojo( name = "watch", threadSafe = true)
+public class WatchMojo extends CodeswitcherMojo {
+
+	@Override
+	void processed(CodeSwitcher switcher, List<SourceTree> trees) throws MojoExecutionException {
+		try {
+			SourceWatcher watcher = new SourceWatcher(switcher, trees);
+			try {
+				watcher.watch();
+			} finally {
+				watcher.close();
+			}
+		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to watch for changes.", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeNotNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a file is only ever replaced by its complete result, and that
+ * nothing is left behind whether processing succeeds or fails.
+ */
+public class AtomicWriteTest {
+
+	private static final String[] SOURCE = { "package a;", "class A {", "\t//#ifdef FAST", "\tint fast;",
+			"\t//#endif", "\t//#ifdef DEBUG", "\tint debug;", "\t//#endif", "}" };
+
+	private static final String[] BROKEN = { "package a;", "class Broken {", "\t//#ifdef FAST", "}" };
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private ProjectFixture project;
+
+	@Before
+	public void setUp() throws Exception {
+		project = new ProjectFixture(temp.getRoot());
+		project.write("src/main/java/a/A.java", SOURCE);
+	}
+
+	@Test
+	public void testInPlace() throws Exception {
+		build(false);
+		assertEquals("package a;\nclass A {\n\tint fast;\n}\n", project.read("src/main/java/a/A.java"));
+		assertFiles("src/main/java/a", "A.java");
+	}
+
+	@Test
+	public void testInPlaceKeepsPermissions() throws Exception {
+		PosixFileAttributeView view = Files.getFileAttributeView(project.file("src/main/java/a/A.java").toPath(),
+				PosixFileAttributeView.class);
+		assumeNotNull(view);
+		view.setPermissions(PosixFilePermissions.fromString("rwxr-x---"));
+		build(false);
+		assertEquals("rwxr-x---", PosixFilePermissions.toString(view.readAttributes().permissions()));
+		assertEquals("package a;\nclass A {\n\tint fast;\n}\n", project.read("src/main/java/a/A.java"));
+	}
+
+	@Test
+	public void testInPlaceFailureLeavesSourceAlone() throws Exception {
+		project.write("src/main/java/a/Broken.java", BROKEN);
+		buildAndFail(false);
+		assertEquals(String.join("\n", BROKEN) + "\n", project.read("src/main/java/a/Broken.java"));
+		assertFiles("src/main/java/a", "A.java", "Broken.java");
+	}
+
+	@Test
+	public void testCopyReplacesOutput() throws Exception {
+		project.write("target/preprocessed/a/A.java", "// Old");
+		build(true);
+		assertEquals("package a;\nclass A {\n\tint fast;\n}\n", project.read("target/preprocessed/a/A.java"));
+		assertEquals(project.file("src/main/java/a/A.java").lastModified(),
+				project.file("target/preprocessed/a/A.java").lastModified());
+		assertFiles("target/preprocessed/a", "A.java");
+	}
+
+	@Test
+	public void testCopyFailureLeavesUnprocessedCopy() throws Exception {
+		project.write("target/preprocessed/a/Broken.java", "// Old");
+		project.write("src/main/java/a/Broken.java", BROKEN);
+		buildAndFail(true);
+		assertEquals(String.join("\n", BROKEN) + "\n", project.read("target/preprocessed/a/Broken.java"));
+		// Processing may stop before A.java is reached
+		for (String name : project.file("target/preprocessed/a").list()) {
+			if (name.endsWith(".tmp")) {
+				fail("Temporary file " + name + " was left behind");
+			}
+		}
+	}
+
+	private void build(boolean workOnCopy) throws Exception {
+		CodeswitcherMojo mojo = project.configure(new CodeswitcherMojo());
+		ProjectFixture.set(mojo, "workOnCopy", workOnCopy);
+		ProjectFixture.set(mojo, "enable", new String[] { "FAST" });
+		ProjectFixture.set(mojo, "disable", new String[] { "DEBUG" });
+		mojo.execute();
+	}
+
+	private void buildAndFail(boolean workOnCopy) throws Exception {
+		try {
+			build(workOnCopy);
+			fail("Processing should have failed");
+		} catch (MojoExecutionException mee) {
+			// Expected
+		}
+	}
+
+	/*
+	 * Hidden files included, as that is what a temporary file would be.
+	 */
+	private void assertFiles(String dir, String... names) {
+		List<String> actual = new ArrayList<String>(Arrays.asList(project.file(dir).list()));
+		actual.sort(null);
+		assertEquals(Arrays.asList(names), actual);
+	}
+}
@@ -0,0 +1,250 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.plexus.util.Scanner;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+/**
+ * Runs builds as an IDE would, with a build context that reports which
+ * files have changed or been deleted since the last build. Outputs are
+ * marked between builds, so a mark that survives shows the file was left
+ * alone.
+ */
+public class BuildContextTest {
+
+	private static final String MARK = "// Not processed again\n";
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private ProjectFixture project;
+	private DeltaBuildContext context;
+
+	@Before
+	public void setUp() throws Exception {
+		project = new ProjectFixture(temp.getRoot());
+		project.write("src/main/java/a/A.java", "package a;", "class A {", "\t//#ifdef FAST", "\tint fast;",
+				"\t//#endif", "}");
+		project.write("src/main/java/a/B.java", "package a;", "class B {", "}");
+		project.write("src/main/java/a/C.java", "package a;", "class C {", "}");
+		context = new DeltaBuildContext();
+		build("FAST");
+		context.incremental = true;
+	}
+
+	@Test
+	public void testOnlyDeltaIsProcessed() throws Exception {
+		markAll();
+		project.write("src/main/java/a/C.java", "package a;", "class C {", "\t//#ifdef FAST", "\tint changed;",
+				"\t//#endif", "}");
+		assertTrue(project.file("src/main/java/a/B.java").delete());
+		context.changed.add("a/C.java");
+		context.deleted.add("a/B.java");
+		build("FAST");
+
+		assertTrue(output("a/A.java").startsWith(MARK));
+		assertEquals("package a;\nclass C {\n\tint changed;\n}\n", output("a/C.java"));
+		assertFalse(project.file("target/preprocessed/a/B.java").exists());
+		assertTrue(context.refreshed.contains(project.file("target/preprocessed/a/C.java")));
+		assertTrue(context.refreshed.contains(project.file("target/preprocessed/a/B.java")));
+		assertFalse(context.refreshed.contains(project.file("target/preprocessed/a/A.java")));
+	}
+
+	@Test
+	public void testNoDelta() throws Exception {
+		markAll();
+		build("FAST");
+		assertTrue(output("a/A.java").startsWith(MARK));
+		assertTrue(output("a/B.java").startsWith(MARK));
+		assertTrue(output("a/C.java").startsWith(MARK));
+		assertTrue(context.refreshed.isEmpty());
+	}
+
+	@Test
+	public void testConfigurationChangeProcessesEverything() throws Exception {
+		markAll();
+		build("FAST", "DEBUG");
+		assertFalse(output("a/A.java").startsWith(MARK));
+		assertEquals("package a;\nclass B {\n}\n", output("a/B.java"));
+		assertEquals("package a;\nclass C {\n}\n", output("a/C.java"));
+	}
+
+	@Test
+	public void testMissingOutputProcessesEverything() throws Exception {
+		assertTrue(project.file("target/preprocessed").renameTo(project.file("target/moved")));
+		build("FAST");
+		assertEquals("package a;\nclass A {\n\tint fast;\n}\n", output("a/A.java"));
+	}
+
+	@Test
+	public void testDeltaInPlace() throws Exception {
+		// The first build in place records its own configuration
+		context.incremental = false;
+		writeFast("A");
+		writeFast("C");
+		buildInPlace();
+
+		context.incremental = true;
+		writeFast("A");
+		writeFast("C");
+		context.changed.add("a/C.java");
+		buildInPlace();
+		assertEquals("package a;\nclass A {\n\t//#ifdef FAST\n\tint fast;\n\t//#endif\n}\n",
+				project.read("src/main/java/a/A.java"));
+		assertEquals("package a;\nclass C {\n\tint fast;\n}\n", project.read("src/main/java/a/C.java"));
+	}
+
+	private void build(String... enable) throws Exception {
+		context.refreshed.clear();
+		CodeswitcherMojo mojo = project.configure(new CodeswitcherMojo(), context);
+		ProjectFixture.set(mojo, "enable", enable);
+		mojo.execute();
+		context.changed.clear();
+		context.deleted.clear();
+	}
+
+	private void buildInPlace() throws Exception {
+		CodeswitcherMojo mojo = project.configure(new CodeswitcherMojo(), context);
+		ProjectFixture.set(mojo, "workOnCopy", false);
+		ProjectFixture.set(mojo, "enable", new String[] { "FAST" });
+		mojo.execute();
+		context.changed.clear();
+	}
+
+	private void writeFast(String name) throws Exception {
+		project.write("src/main/java/a/" + name + ".java", "package a;", "class " + name + " {", "\t//#ifdef FAST",
+				"\tint fast;", "\t//#endif", "}");
+	}
+
+	private void markAll() throws Exception {
+		for (String path : new String[] { "a/A.java", "a/B.java", "a/C.java" }) {
+			project.write("target/preprocessed/" + path, (MARK + output(path)).split("\n"));
+		}
+	}
+
+	private String output(String path) throws Exception {
+		return project.read("target/preprocessed/" + path);
+	}
+
+	/**
+	 * A build context that keeps its values between builds and reports the
+	 * files it is told have changed, as an IDE would.
+	 */
+	static class DeltaBuildContext extends DefaultBuildContext {
+		boolean incremental;
+		final Set<String> changed = new LinkedHashSet<String>();
+		final Set<String> deleted = new LinkedHashSet<String>();
+		final Set<File> refreshed = new LinkedHashSet<File>();
+		private final Map<String, Object> values = new HashMap<String, Object>();
+
+		@Override
+		public boolean isIncremental() {
+			return incremental;
+		}
+
+		@Override
+		public boolean hasDelta(File file) {
+			return !incremental || !changed.isEmpty() || !deleted.isEmpty();
+		}
+
+		@Override
+		public Scanner newScanner(File basedir) {
+			return incremental ? new ListScanner(basedir, changed) : super.newScanner(basedir);
+		}
+
+		@Override
+		public Scanner newDeleteScanner(File basedir) {
+			return new ListScanner(basedir, deleted);
+		}
+
+		@Override
+		public void refresh(File file) {
+			refreshed.add(file);
+		}
+
+		@Override
+		public Object getValue(String key) {
+			return values.get(key);
+		}
+
+		@Override
+		public void setValue(String key, Object value) {
+			values.put(key, value);
+		}
+	}
+
+	static class ListScanner implements Scanner {
+		private final File basedir;
+		private final List<String> files;
+
+		ListScanner(File basedir, Set<String> files) {
+			this.basedir = basedir;
+			this.files = new ArrayList<String>(files);
+		}
+
+		@Override
+		public void setIncludes(String[] includes) {
+		}
+
+		@Override
+		public void setExcludes(String[] excludes) {
+		}
+
+		@Override
+		public void addDefaultExcludes() {
+		}
+
+		@Override
+		public void scan() {
+		}
+
+		@Override
+		public String[] getIncludedFiles() {
+			String[] paths = new String[files.size()];
+			for (int i = 0; i < paths.length; i++) {
+				paths[i] = files.get(i).replace('/', File.separatorChar);
+			}
+			return paths;
+		}
+
+		@Override
+		public String[] getIncludedDirectories() {
+			return new String[0];
+		}
+
+		@Override
+		public File getBasedir() {
+			return basedir;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that lines are split as {@link BufferedReader#readLine()} splits
+ * them, and that they are decoded, compared and copied as the character set
+ * would have them.
+ */
+public class ByteLinesTest {
+
+	@Test
+	public void testSplitsAsReaderDoes() throws Exception {
+		for (String text : new String[] { "", "a", "a\n", "a\nb", "a\r\nb\r\n", "a\rb\rc", "a\n\nb", "\r\n\r\n",
+				"a\r\r\nb", "a\n\rb", "\n" }) {
+			assertEquals(text.replace("\r", "\\r").replace("\n", "\\n"), readLines(text),
+					lines(new ByteLines(wrap(text, StandardCharsets.UTF_8), StandardCharsets.UTF_8)));
+		}
+	}
+
+	@Test
+	public void testManyLines() throws Exception {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			b.append("line ").append(i).append(i % 2 == 0 ? "\n" : "\r\n");
+		}
+		String text = b.toString();
+		assertEquals(readLines(text),
+				lines(new ByteLines(wrap(text, StandardCharsets.UTF_8), StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void testPartOfBuffer() {
+		byte[] data = "xxa\nbyy".getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buf = ByteBuffer.wrap(data, 1, 5).slice();
+		buf.position(1).limit(4);
+		ByteLines lines = new ByteLines(buf, StandardCharsets.US_ASCII);
+		assertTrue(lines.has(1));
+		assertEquals("a", lines.get(0));
+		assertEquals("b", lines.get(1));
+		assertFalse(lines.has(2));
+	}
+
+	@Test
+	public void testDecodesNonAscii() {
+		for (Charset charset : new Charset[] { StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1,
+				Charset.forName("windows-1252") }) {
+			ByteLines lines = new ByteLines(wrap("caf\u00e9\n\u00e0 la carte\nplain\n", charset), charset);
+			assertTrue(lines.has(2));
+			assertEquals(charset.name(), "caf\u00e9", lines.get(0));
+			assertEquals(charset.name(), "\u00e0 la carte", lines.get(1));
+			assertEquals(charset.name(), "plain", lines.get(2));
+		}
+	}
+
+	@Test
+	public void testEquals() {
+		ByteLines lines = new ByteLines(wrap("abc\ncaf\u00e9\n\n", StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+		assertTrue(lines.has(2));
+		assertTrue(lines.equals(0, "abc"));
+		assertFalse(lines.equals(0, "abd"));
+		assertFalse(lines.equals(0, "ab"));
+		assertFalse(lines.equals(0, "abc\u00e9"));
+		assertTrue(lines.equals(1, "caf\u00e9"));
+		assertFalse(lines.equals(1, "cafe"));
+		assertTrue(lines.equals(2, ""));
+	}
+
+	@Test
+	public void testWriteCopiesBytes() throws Exception {
+		Charset charset = StandardCharsets.ISO_8859_1;
+		ByteLines lines = new ByteLines(wrap("caf\u00e9\r\nb\n", charset), charset);
+		assertTrue(lines.has(1));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		lines.write(0, out);
+		lines.write(1, out);
+		assertArrayEquals("caf\u00e9b".getBytes(charset), out.toByteArray());
+	}
+
+	@Test
+	public void testEncode() {
+		assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), ByteLines.encode("abc", StandardCharsets.UTF_8));
+		assertArrayEquals("caf\u00e9".getBytes(StandardCharsets.UTF_8),
+				ByteLines.encode("caf\u00e9", StandardCharsets.UTF_8));
+		assertArrayEquals("caf\u00e9".getBytes(StandardCharsets.ISO_8859_1),
+				ByteLines.encode("caf\u00e9", StandardCharsets.ISO_8859_1));
+	}
+
+	private static ByteBuffer wrap(String text, Charset charset) {
+		return ByteBuffer.wrap(text.getBytes(charset));
+	}
+
+	private static List<String> lines(ByteLines lines) {
+		List<String> l = new ArrayList<String>();
+		for (int i = 0; lines.has(i); i++) {
+			l.add(lines.get(i));
+		}
+		return l;
+	}
+
+	private static List<String> readLines(String text) throws Exception {
+		List<String> l = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			l.add(line);
+		}
+		return l;
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that outputs holding the current key are left alone, and that on a
+ * mismatch the outputs are made to depend on the key alone.
+ */
+public class CacheKeyTest {
+
+	private static final String KEY = "target/preprocessed/" + CodeswitcherMojo.CACHE_KEY;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private ProjectFixture project;
+
+	@Before
+	public void setUp() throws Exception {
+		project = new ProjectFixture(temp.getRoot());
+		project.write("src/main/java/a/A.java", "package a;", "class A {", "\t//#ifdef FAST", "\tint fast;",
+				"\t//#endif", "}");
+		project.write("src/main/java/a/B.java", "package a;", "class B {", "}");
+		build(false);
+	}
+
+	@Test
+	public void testKeyIsWritten() throws Exception {
+		assertEquals("package a;\nclass A {\n\tint fast;\n}\n", project.read("target/preprocessed/a/A.java"));
+		assertTrue(project.read(KEY).trim().length() > 0);
+	}
+
+	@Test
+	public void testKeyHitSkipsRoot() throws Exception {
+		project.write("target/preprocessed/a/A.java", "// Restored");
+		project.write("target/preprocessed/Extra.java", "// Left alone");
+		build(false);
+		assertEquals("// Restored\n", project.read("target/preprocessed/a/A.java"));
+		assertTrue(project.file("target/preprocessed/Extra.java").exists());
+	}
+
+	@Test
+	public void testKeyMissRemovesOrphans() throws Exception {
+		assertKeyMissRemovesOrphans(false);
+	}
+
+	@Test
+	public void testKeyMissRemovesOrphansWhenIncremental() throws Exception {
+		assertKeyMissRemovesOrphans(true);
+	}
+
+	@Test
+	public void testFailedProcessingKeepsOldKey() throws Exception {
+		String key = project.read(KEY);
+		project.write("src/main/java/a/Broken.java", "package a;", "//#ifdef FAST", "class Broken {", "}");
+		try {
+			build(false);
+			fail("Processing should have failed");
+		} catch (MojoExecutionException mee) {
+			// Expected
+		}
+		assertEquals(key, project.read(KEY));
+
+		// The next build must process it again rather than find the old key
+		project.write("src/main/java/a/Broken.java", "package a;", "class Broken {", "}");
+		build(false);
+		assertNotEquals(key, project.read(KEY));
+		assertTrue(project.file("target/preprocessed/a/Broken.java").exists());
+	}
+
+	private void assertKeyMissRemovesOrphans(boolean incremental) throws Exception {
+		String key = project.read(KEY);
+		project.write("target/preprocessed/Orphan.java", "// Not from the source");
+		project.write("target/preprocessed/old/deep/Orphan.java", "// Not from the source");
+		project.write("src/main/java/a/B.java", "package a;", "class B {", "\tint changed;", "}");
+		build(incremental);
+		assertFalse(project.file("target/preprocessed/Orphan.java").exists());
+		assertFalse("Empty directories should be removed", project.file("target/preprocessed/old").exists());
+		assertTrue(project.file("target/preprocessed/a/A.java").exists());
+		assertEquals("package a;\nclass B {\n\tint changed;\n}\n", project.read("target/preprocessed/a/B.java"));
+		assertNotEquals(key, project.read(KEY));
+	}
+
+	private void build(boolean incremental) throws Exception {
+		CodeswitcherMojo mojo = project.configure(new CodeswitcherMojo());
+		ProjectFixture.set(mojo, "cacheKey", true);
+		ProjectFixture.set(mojo, "incremental", incremental);
+		ProjectFixture.set(mojo, "enable", new String[] { "FAST" });
+		mojo.execute();
+	}
+}
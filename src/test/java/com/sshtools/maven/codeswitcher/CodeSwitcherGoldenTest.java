@@ -0,0 +1,192 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Processes the files in <code>golden/input</code> and compares the results
+ * byte for byte with those in <code>golden/expected</code>, for comment and
+ * strip modes. A file with no expected result must be deleted.
+ * <p>
+ * The cases cover each comment style, <code>else</code> and
+ * <code>endif</code>, unknown symbols, single line directives inside and
+ * outside blocks, tokens, <code>del</code>, CRLF input, nested blocks (which
+ * are rejected), a removed block at the very end of a file with no final
+ * line separator, and <code>if</code> expressions, including a bare
+ * <code>//#if</code> that is not a directive.
+ */
+public class CodeSwitcherGoldenTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File work;
+
+	@Before
+	public void setUp() throws Exception {
+		work = temp.getRoot();
+	}
+
+	@Test
+	public void testCommentMode() throws Exception {
+		assertProcessed(true, 1);
+	}
+
+	@Test
+	public void testStripMode() throws Exception {
+		assertProcessed(false, 1);
+	}
+
+	@Test
+	public void testConcurrentMatchesSequential() throws Exception {
+		assertProcessed(true, 4);
+		assertProcessed(false, 4);
+	}
+
+	@Test
+	public void testCommentModeIsStable() throws Exception {
+		File dir = copyInput();
+		process(dir, true, 1);
+		for (File file : dir.listFiles()) {
+			assertTrue(file.setLastModified(1000000));
+		}
+		process(dir, true, 1);
+		assertMatches("comment", dir);
+		for (File file : dir.listFiles()) {
+			assertEquals(file.getName() + " was rewritten", 1000000, file.lastModified());
+		}
+	}
+
+	@Test
+	public void testWorkOnCopy() throws Exception {
+		File target = new File(work, "target");
+		List<String> errors = new ArrayList<String>();
+		CodeSwitcher switcher = newSwitcher(false, 1, errors);
+		switcher.addTree(golden("input"), target);
+		switcher.process();
+		assertMatches("strip", target);
+		assertEquals(Arrays.asList("Nested.java"), errors);
+	}
+
+	private void assertProcessed(boolean comment, int threads) throws Exception {
+		File dir = copyInput();
+		List<String> errors = process(dir, comment, threads);
+		assertMatches(comment ? "comment" : "strip", dir);
+		assertEquals(Arrays.asList("Nested.java"), errors);
+	}
+
+	private List<String> process(File dir, boolean comment, int threads) throws Exception {
+		List<String> errors = new ArrayList<String>();
+		CodeSwitcher switcher = newSwitcher(comment, threads, errors);
+		switcher.addDir(dir.getAbsolutePath());
+		switcher.process();
+		return errors;
+	}
+
+	private CodeSwitcher newSwitcher(boolean comment, int threads, final List<String> errors) {
+		CodeSwitcher switcher = new CodeSwitcher() {
+			@Override
+			protected void printError(File file, int line, String message) {
+				// Each file that fails is reported once more at line 0
+				if (file != null && line == 0) {
+					errors.add(file.getName());
+				}
+			}
+
+			@Override
+			protected void printMessage(File file, int line, String message) {
+			}
+		};
+		switcher.setFailOnError(false);
+		switcher.setComment(comment);
+		switcher.setThreads(threads);
+		switcher.setLineSeparator("\n");
+		Map<String, String> tokens = new HashMap<String, String>();
+		tokens.put("@VERSION@", "1.2.3");
+		tokens.put("BRAND", "Acme");
+		switcher.setTokens(tokens);
+		switcher.enableSymbol("ON");
+		switcher.disableSymbol("OFF");
+		return switcher;
+	}
+
+	private void assertMatches(String mode, File dir) throws IOException {
+		File expected = golden("expected/" + mode);
+		List<String> names = new ArrayList<String>(Arrays.asList(golden("input").list()));
+		Collections.sort(names);
+		for (String name : names) {
+			File expectedFile = new File(expected, name);
+			File actualFile = new File(dir, name);
+			if (expectedFile.exists()) {
+				assertTrue(name + " is missing", actualFile.exists());
+				assertEquals(mode + " " + name, new String(Files.readAllBytes(expectedFile.toPath()), "UTF-8"),
+						new String(Files.readAllBytes(actualFile.toPath()), "UTF-8"));
+			} else {
+				assertFalse(name + " should have been deleted", actualFile.exists());
+			}
+		}
+	}
+
+	private File copyInput() throws IOException {
+		final Path from = golden("input").toPath();
+		final Path to = new File(work, "src" + work.list().length).toPath();
+		Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.copy(file, to.resolve(from.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return to.toFile();
+	}
+
+	private File golden(String path) {
+		try {
+			return new File(new File(getClass().getResource("golden").toURI()), path);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import javax.tools.ToolProvider;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pre-processes source into memory and compiles it, then loads the classes
+ * to check the code that was compiled is the code that was switched on.
+ */
+public class CompileMojoTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private ProjectFixture project;
+
+	@Before
+	public void setUp() throws Exception {
+		assumeNotNull(ToolProvider.getSystemJavaCompiler());
+		project = new ProjectFixture(temp.getRoot());
+		project.project.getBuild().setOutputDirectory(project.file("target/classes").getAbsolutePath());
+		project.write("src/main/java/a/Edition.java", "package a;", "public class Edition {",
+				"\tpublic static String name() {", "\t\t//#ifdef PRO", "\t\treturn \"@NAME@ Pro\";", "\t\t//#else",
+				"\t\treturn \"@NAME@ Free\";", "\t\t//#endif", "\t}", "}");
+		// Does not compile unless switched off
+		project.write("src/main/java/a/Unfinished.java", "package a;", "class Unfinished {", "\t//#ifdef WIP",
+				"\tvoid unfinished() { not java }", "\t//#endif", "}");
+		project.write("src/main/java/a/b/Plain.java", "package a.b;", "public class Plain {", "}");
+	}
+
+	@Test
+	public void testCompile() throws Exception {
+		CompileMojo mojo = configure();
+		ProjectFixture.set(mojo, "enable", new String[] { "PRO" });
+		mojo.execute();
+		assertEquals("Widget Pro", name("target/classes"));
+		assertTrue(project.file("target/classes/a/Unfinished.class").isFile());
+		assertTrue(project.file("target/classes/a/b/Plain.class").isFile());
+		// Nothing but class files is written
+		assertFalse(project.file("target/preprocessed").exists());
+	}
+
+	@Test
+	public void testCompileVariants() throws Exception {
+		Variant free = new Variant();
+		free.name = "free";
+		free.disable = new String[] { "PRO" };
+		Variant pro = new Variant();
+		pro.name = "pro";
+		pro.enable = new String[] { "PRO" };
+		CompileMojo mojo = configure();
+		ProjectFixture.set(mojo, "variants", new Variant[] { free, pro });
+		mojo.execute();
+		assertEquals("Widget Free", name("target/classes-free"));
+		assertEquals("Widget Pro", name("target/classes-pro"));
+		assertFalse(project.file("target/classes").exists());
+	}
+
+	@Test
+	public void testDumpDirectory() throws Exception {
+		CompileMojo mojo = configure();
+		ProjectFixture.set(mojo, "disable", new String[] { "PRO", "WIP" });
+		ProjectFixture.set(mojo, "dumpDirectory", project.file("target/dump"));
+		mojo.execute();
+		assertEquals("package a;\npublic class Edition {\n\tpublic static String name() {\n"
+				+ "\t\treturn \"Widget Free\";\n\t}\n}\n", project.read("target/dump/a/Edition.java"));
+		assertTrue(project.file("target/dump/a/b/Plain.java").isFile());
+	}
+
+	@Test(expected = MojoExecutionException.class)
+	public void testCompileError() throws Exception {
+		CompileMojo mojo = configure();
+		ProjectFixture.set(mojo, "enable", new String[] { "WIP" });
+		mojo.execute();
+	}
+
+	private CompileMojo configure() {
+		CompileMojo mojo = project.configure(new CompileMojo());
+		ProjectFixture.set(mojo, "classesDirectory", project.file("target/classes"));
+		ProjectFixture.set(mojo, "disable", new String[] { "WIP" });
+		Token token = new Token();
+		token.key = "@NAME@";
+		token.value = "Widget";
+		ProjectFixture.set(mojo, "tokens", new Token[] { token });
+		return mojo;
+	}
+
+	private String name(String classes) throws Exception {
+		URLClassLoader loader = new URLClassLoader(new URL[] { project.file(classes).toURI().toURL() }, null);
+		try {
+			return (String) loader.loadClass("a.Edition").getMethod("name").invoke(null);
+		} finally {
+			loader.close();
+		}
+	}
+}
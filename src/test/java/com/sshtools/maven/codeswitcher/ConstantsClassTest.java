@@ -0,0 +1,128 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the types inferred for constant values, the names made from token
+ * keys, and the source generated.
+ */
+public class ConstantsClassTest {
+
+	@Test
+	public void testInts() {
+		assertEquals("int", ConstantsClass.inferType("0"));
+		assertEquals("int", ConstantsClass.inferType(" 42 "));
+		assertEquals("int", ConstantsClass.inferType("2147483647"));
+		assertEquals("int", ConstantsClass.inferType("-2147483648"));
+	}
+
+	@Test
+	public void testLongs() {
+		assertEquals("long", ConstantsClass.inferType("2147483648"));
+		assertEquals("long", ConstantsClass.inferType("-2147483649"));
+		assertEquals("long", ConstantsClass.inferType("3000000000"));
+		assertEquals("long", ConstantsClass.inferType("9223372036854775807"));
+		assertEquals("long", ConstantsClass.inferType("-9223372036854775808"));
+		assertEquals("long", ConstantsClass.inferType("5L"));
+		assertEquals("long", ConstantsClass.inferType("5l"));
+	}
+
+	@Test
+	public void testTooLargeForLong() {
+		assertNull(ConstantsClass.inferType("9223372036854775808"));
+		assertNull(ConstantsClass.inferType("-9223372036854775809"));
+		assertNull(ConstantsClass.inferType("9223372036854775808L"));
+	}
+
+	@Test
+	public void testDoubles() {
+		assertEquals("double", ConstantsClass.inferType("1.5"));
+		assertEquals("double", ConstantsClass.inferType("-0.25"));
+		assertEquals("double", ConstantsClass.inferType(".5"));
+		assertEquals("double", ConstantsClass.inferType("1."));
+		assertEquals("double", ConstantsClass.inferType("1e10"));
+		assertEquals("double", ConstantsClass.inferType("2.5E-3d"));
+	}
+
+	@Test
+	public void testOtherLiterals() {
+		assertEquals("boolean", ConstantsClass.inferType("true"));
+		assertEquals("boolean", ConstantsClass.inferType("false"));
+		assertEquals("char", ConstantsClass.inferType("'x'"));
+		assertEquals("char", ConstantsClass.inferType("'\\n'"));
+		assertEquals("String", ConstantsClass.inferType("\"1.2.3\""));
+		assertEquals("String", ConstantsClass.inferType("\"\""));
+	}
+
+	@Test
+	public void testNotLiterals() {
+		assertNull(ConstantsClass.inferType(""));
+		assertNull(ConstantsClass.inferType("1.2.3"));
+		assertNull(ConstantsClass.inferType("System.currentTimeMillis()"));
+		assertNull(ConstantsClass.inferType("\""));
+		assertNull(ConstantsClass.inferType("''"));
+		assertNull(ConstantsClass.inferType("TRUE"));
+	}
+
+	@Test
+	public void testToName() {
+		assertEquals("RELEASE_DATE", ConstantsClass.toName("@RELEASE-DATE@"));
+		assertEquals("VERSION", ConstantsClass.toName("version"));
+		assertEquals("A_B", ConstantsClass.toName("a -- b"));
+		assertEquals("BUILD_NUMBER", ConstantsClass.toName("/* BUILD_NUMBER */"));
+		assertEquals("TOKEN_1ST", ConstantsClass.toName("1st"));
+		assertEquals("TOKEN_", ConstantsClass.toName("@@"));
+		assertEquals("A_B", ConstantsClass.toName("a$b"));
+	}
+
+	@Test
+	public void testLongValueIsSuffixed() {
+		ConstantsClass constants = new ConstantsClass("a.BuildInfo");
+		assertEquals("a.BuildInfo.BIG", constants.add("BIG", "3000000000", null));
+		assertEquals("a.BuildInfo.SMALL", constants.add("SMALL", "3", null));
+		String source = constants.getSource("\n");
+		assertTrue(source, source.contains("public static final long BIG;"));
+		assertTrue(source, source.contains("BIG = 3000000000L;"));
+		assertTrue(source, source.contains("public static final int SMALL;"));
+		assertTrue(source, source.contains("SMALL = 3;"));
+	}
+
+	@Test
+	public void testNamesAreUnique() {
+		ConstantsClass constants = new ConstantsClass("BuildInfo");
+		assertEquals("BuildInfo.A_B", constants.add("a-b", "1", null));
+		assertEquals("BuildInfo.A_B_2", constants.add("a.b", "2", null));
+		assertNull(constants.add("c", "compute()", null));
+		assertEquals("BuildInfo.C", constants.add("c", "compute()", "int"));
+		assertEquals("BuildInfo.java", constants.getPath());
+	}
+
+	@Test
+	public void testValidName() {
+		assertTrue(ConstantsClass.isValidName("a.b.BuildInfo"));
+		assertTrue(ConstantsClass.isValidName("BuildInfo"));
+		assertFalse(ConstantsClass.isValidName("a..BuildInfo"));
+		assertFalse(ConstantsClass.isValidName("a.1b.BuildInfo"));
+		assertFalse(ConstantsClass.isValidName("a.Build-Info"));
+	}
+}
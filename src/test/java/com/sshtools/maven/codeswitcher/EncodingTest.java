@@ -0,0 +1,100 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Processes source that is not all ASCII in character sets that are read as
+ * bytes, and in one that must be decoded as it is read, and checks that
+ * every character comes out as it went in.
+ */
+public class EncodingTest {
+
+	private static final String SOURCE = "package a;\r\n" + "class A {\r\n" + "\t// Caf\u00e9 \u00e0 la carte\r\n"
+			+ "\t//#ifdef GR\u00dcN\r\n" + "\tString green = \"gr\u00fcn\";\r\n" + "\t//#endif\r\n"
+			+ "\t//#ifdef DEBUG\r\n" + "\tString debug = \"d\u00e9bogage\";\r\n" + "\t//#endif\r\n"
+			+ "\tString name = \"@NAME@\";\r\n" + "}\r\n";
+
+	private static final String EXPECTED = "package a;\n" + "class A {\n" + "\t// Caf\u00e9 \u00e0 la carte\n"
+			+ "\tString green = \"gr\u00fcn\";\n" + "\tString name = \"\u00c5ngstr\u00f6m\";\n" + "}\n";
+
+	private static final String UNCHANGED = "package a;\r\n" + "// Na\u00efve r\u00e9sum\u00e9\r\n"
+			+ "class B {\r\n" + "}\r\n";
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void testUtf8() throws Exception {
+		assertProcessed(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testIso88591() throws Exception {
+		assertProcessed(StandardCharsets.ISO_8859_1);
+	}
+
+	@Test
+	public void testWindows1252() throws Exception {
+		assertProcessed(Charset.forName("windows-1252"));
+	}
+
+	@Test
+	public void testNotAsciiCompatible() throws Exception {
+		assertProcessed(StandardCharsets.UTF_16);
+	}
+
+	private void assertProcessed(Charset charset) throws Exception {
+		ProjectFixture project = new ProjectFixture(temp.newFolder(charset.name()));
+		write(project.file("src/main/java/a/A.java"), SOURCE, charset);
+		write(project.file("src/main/java/a/B.java"), UNCHANGED, charset);
+
+		CodeswitcherMojo mojo = project.configure(new CodeswitcherMojo());
+		ProjectFixture.set(mojo, "encoding", charset.name());
+		ProjectFixture.set(mojo, "enable", new String[] { "GR\u00dcN" });
+		ProjectFixture.set(mojo, "disable", new String[] { "DEBUG" });
+		Token token = new Token();
+		token.key = "@NAME@";
+		token.value = "\u00c5ngstr\u00f6m";
+		ProjectFixture.set(mojo, "tokens", new Token[] { token });
+		mojo.execute();
+
+		assertEquals(EXPECTED, read(project.file("target/preprocessed/a/A.java"), charset));
+		// Copied as it is, line separators and all
+		assertArrayEquals(UNCHANGED.getBytes(charset),
+				Files.readAllBytes(project.file("target/preprocessed/a/B.java").toPath()));
+	}
+
+	private static void write(File file, String text, Charset charset) throws Exception {
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), text.getBytes(charset));
+	}
+
+	private static String read(File file, Charset charset) throws Exception {
+		return new String(Files.readAllBytes(file.toPath()), charset);
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Checks the precedence and three valued results of <code>#if</code>
+ * expressions, with the symbols <code>T</code> enabled, <code>F</code>
+ * disabled and <code>U</code> unknown. Every expression is evaluated both as
+ * parsed and bound to the symbol table, which must agree.
+ */
+public class ExpressionTest {
+
+	private final SymbolTable symbols = new SymbolTable(Arrays.asList("T", "T2"), Arrays.asList("F", "F2"));
+
+	@Test
+	public void testSymbols() throws Exception {
+		assertEval(Boolean.TRUE, "T");
+		assertEval(Boolean.FALSE, "F");
+		assertEval(null, "U");
+	}
+
+	@Test
+	public void testNotBindsTighterThanAnd() throws Exception {
+		assertEval(Boolean.TRUE, "!F && T");
+		assertEval(Boolean.FALSE, "!T && T");
+		assertEval(Boolean.FALSE, "!(T && F) && F");
+	}
+
+	@Test
+	public void testAndBindsTighterThanOr() throws Exception {
+		// (F && T) || T, not F && (T || T)
+		assertEval(Boolean.TRUE, "F && T || T");
+		// T || (T && F), not (T || T) && F
+		assertEval(Boolean.TRUE, "T || T && F");
+		assertEval(Boolean.FALSE, "(T || T) && F");
+		assertEval(Boolean.TRUE, "F || T && !F");
+	}
+
+	@Test
+	public void testParentheses() throws Exception {
+		assertEval(Boolean.FALSE, "!(T || F)");
+		assertEval(Boolean.TRUE, "((T))");
+		assertEval(Boolean.TRUE, "( F || T ) && ( T2 || F2 )");
+		assertEval(Boolean.TRUE, "!!T");
+	}
+
+	@Test
+	public void testUnknownInAnd() throws Exception {
+		assertEval(null, "T && U");
+		assertEval(null, "U && T");
+		assertEval(Boolean.FALSE, "F && U");
+		assertEval(Boolean.FALSE, "U && F");
+	}
+
+	@Test
+	public void testUnknownInOr() throws Exception {
+		assertEval(Boolean.TRUE, "T || U");
+		assertEval(Boolean.TRUE, "U || T");
+		assertEval(null, "F || U");
+		assertEval(null, "U || F");
+	}
+
+	@Test
+	public void testUnknownInNot() throws Exception {
+		assertEval(null, "!U");
+		assertEval(Boolean.TRUE, "!U || T");
+		assertEval(Boolean.FALSE, "!(U || T)");
+	}
+
+	@Test
+	public void testWhiteSpaceIsOptional() throws Exception {
+		assertEval(Boolean.TRUE, "T&&!F||U");
+		assertEval(Boolean.TRUE, "  T  ");
+	}
+
+	@Test
+	public void testCollectSymbols() throws Exception {
+		Set<String> collected = new TreeSet<String>();
+		Expression.parse("A && (B || !C) || A").collectSymbols(collected);
+		assertEquals(new TreeSet<String>(Arrays.asList("A", "B", "C")), collected);
+		collected.clear();
+		Expression.parse("A && !B").bind(symbols).collectSymbols(collected);
+		assertEquals(new TreeSet<String>(Arrays.asList("A", "B")), collected);
+	}
+
+	@Test
+	public void testInvalid() {
+		for (String text : new String[] { "", "  ", "T &&", "|| T", "(T", "T)", "T F", "!", "T & F", "()" }) {
+			try {
+				Expression.parse(text);
+				fail("'" + text + "' should not parse");
+			} catch (ParseException pe) {
+				// Expected
+			}
+		}
+	}
+
+	private void assertEval(Boolean expected, String text) throws ParseException {
+		Expression expression = Expression.parse(text);
+		assertEquals(text, expected, expression.evaluate(symbols));
+		assertEquals(text + " (bound)", expected, expression.bind(symbols).evaluate(symbols));
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs incremental builds one after another. Outputs are marked between
+ * builds, so a mark that survives shows the file was left alone and one that
+ * is gone shows it was processed again.
+ */
+public class IncrementalBuildTest {
+
+	private static final String MARK = "// Not processed again\n";
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private ProjectFixture project;
+
+	@Before
+	public void setUp() throws Exception {
+		project = new ProjectFixture(temp.getRoot());
+		project.write("src/main/java/a/A.java", "package a;", "class A {", "\t//#ifdef FAST", "\tint fast;",
+				"\t//#endif", "}");
+		project.write("src/main/java/a/B.java", "package a;", "class B {", "\t//#ifdef DEBUG", "\tint debug;",
+				"\t//#endif", "}");
+		project.write("src/main/java/a/C.java", "package a;", "class C {", "}");
+		build(new String[] { "FAST" }, new String[] { "DEBUG" }, false);
+	}
+
+	@Test
+	public void testFirstBuildProcessesEverything() throws Exception {
+		assertEquals("package a;\nclass A {\n\tint fast;\n}\n", output("a/A.java"));
+		assertEquals("package a;\nclass B {\n}\n", output("a/B.java"));
+		assertEquals("package a;\nclass C {\n}\n", output("a/C.java"));
+		assertTrue(project.file("target/codeswitcher/manifest.properties").isFile());
+	}
+
+	@Test
+	public void testUnchangedFilesAreLeftAlone() throws Exception {
+		markAll();
+		build(new String[] { "FAST" }, new String[] { "DEBUG" }, false);
+		assertMarked("a/A.java", "a/B.java", "a/C.java");
+	}
+
+	@Test
+	public void testChangedFileIsProcessed() throws Exception {
+		markAll();
+		project.write("src/main/java/a/C.java", "package a;", "class C {", "\tint changed;", "}");
+		build(new String[] { "FAST" }, new String[] { "DEBUG" }, false);
+		assertMarked("a/A.java", "a/B.java");
+		assertEquals("package a;\nclass C {\n\tint changed;\n}\n", output("a/C.java"));
+	}
+
+	@Test
+	public void testMissingOutputIsProcessed() throws Exception {
+		markAll();
+		assertTrue(project.file("target/preprocessed/a/C.java").delete());
+		build(new String[] { "FAST" }, new String[] { "DEBUG" }, false);
+		assertMarked("a/A.java", "a/B.java");
+		assertEquals("package a;\nclass C {\n}\n", output("a/C.java"));
+	}
+
+	@Test
+	public void testDeletedFileOutputIsRemoved() throws Exception {
+		assertTrue(project.file("src/main/java/a/C.java").delete());
+		build(new String[] { "FAST" }, new String[] { "DEBUG" }, false);
+		assertFalse(project.file("target/preprocessed/a/C.java").exists());
+		assertFalse(SourceManifest.load(project.file("target/codeswitcher/manifest.properties")).getPaths()
+				.contains("a/C.java"));
+	}
+
+	@Test
+	public void testConfigurationChangeProcessesEverything() throws Exception {
+		markAll();
+		build(new String[] { "FAST" }, new String[] { "DEBUG" }, true);
+		assertFalse(output("a/A.java").startsWith(MARK));
+		assertFalse(output("a/B.java").startsWith(MARK));
+		assertFalse(output("a/C.java").startsWith(MARK));
+		assertEquals("package a;\nclass B {\n\t//#ifdef DEBUG\n/*\n\tint debug;\n*/\n\t//#endif\n}\n",
+				output("a/B.java"));
+	}
+
+	@Test
+	public void testSymbolChangeOnlyProcessesFilesThatReferToIt() throws Exception {
+		markAll();
+		build(new String[] { "FAST", "DEBUG" }, new String[0], false);
+		assertMarked("a/A.java", "a/C.java");
+		assertEquals("package a;\nclass B {\n\tint debug;\n}\n", output("a/B.java"));
+	}
+
+	private void build(String[] enable, String[] disable, boolean comment) throws Exception {
+		CodeswitcherMojo mojo = project.configure(new CodeswitcherMojo());
+		ProjectFixture.set(mojo, "incremental", true);
+		ProjectFixture.set(mojo, "enable", enable);
+		ProjectFixture.set(mojo, "disable", disable);
+		ProjectFixture.set(mojo, "comment", comment);
+		mojo.execute();
+	}
+
+	private void markAll() throws Exception {
+		for (String path : new String[] { "a/A.java", "a/B.java", "a/C.java" }) {
+			project.write("target/preprocessed/" + path, (MARK + output(path)).split("\n"));
+		}
+	}
+
+	private void assertMarked(String... paths) throws Exception {
+		for (String path : paths) {
+			assertTrue(path + " was processed again", output(path).startsWith(MARK));
+		}
+	}
+
+	private String output(String path) throws Exception {
+		return project.read("target/preprocessed/" + path);
+	}
+}
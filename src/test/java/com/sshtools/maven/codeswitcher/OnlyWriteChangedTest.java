@@ -0,0 +1,123 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that outputs whose content would not change keep their modification
+ * time, so the compiler only recompiles classes whose source really changed.
+ * Outputs are given an old time between builds, and every source is touched.
+ */
+public class OnlyWriteChangedTest {
+
+	private static final long OLD = 946684800000L;
+
+	private static final String[] PATHS = { "a/A.java", "a/B.java", "a/Excluded.java" };
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private ProjectFixture project;
+
+	@Before
+	public void setUp() throws Exception {
+		project = new ProjectFixture(temp.getRoot());
+		project.write("src/main/java/a/A.java", "package a;", "class A {", "\t//#ifdef FAST", "\tint fast;",
+				"\t//#endif", "}");
+		project.write("src/main/java/a/B.java", "package a;", "class B {", "}");
+		project.write("src/main/java/a/Excluded.java", "package a;", "class Excluded {", "\t//#ifdef FAST",
+				"\t//#endif", "}");
+		build(true, true);
+		age();
+	}
+
+	@Test
+	public void testUnchangedOutputsKeepTheirTime() throws Exception {
+		build(true, true);
+		for (String path : PATHS) {
+			assertEquals(path, OLD, lastModified(path));
+		}
+		assertEquals("package a;\nclass A {\n\tint fast;\n}\n", output("a/A.java"));
+	}
+
+	@Test
+	public void testChangedSourceIsWritten() throws Exception {
+		project.write("src/main/java/a/B.java", "package a;", "class B {", "\tint changed;", "}");
+		build(true, true);
+		assertEquals("package a;\nclass B {\n\tint changed;\n}\n", output("a/B.java"));
+		assertNotEquals(OLD, lastModified("a/B.java"));
+		assertEquals(OLD, lastModified("a/A.java"));
+		assertEquals(OLD, lastModified("a/Excluded.java"));
+	}
+
+	@Test
+	public void testChangedResultIsWritten() throws Exception {
+		build(true, false);
+		assertEquals("package a;\nclass A {\n}\n", output("a/A.java"));
+		assertNotEquals(OLD, lastModified("a/A.java"));
+		assertEquals(OLD, lastModified("a/B.java"));
+	}
+
+	@Test
+	public void testChangedOutputIsWritten() throws Exception {
+		project.write("target/preprocessed/a/A.java", "// Edited");
+		project.write("target/preprocessed/a/B.java", "// Edited");
+		build(true, true);
+		assertEquals("package a;\nclass A {\n\tint fast;\n}\n", output("a/A.java"));
+		assertEquals("package a;\nclass B {\n}\n", output("a/B.java"));
+	}
+
+	@Test
+	public void testEveryOutputIsWrittenByDefault() throws Exception {
+		build(false, true);
+		for (String path : PATHS) {
+			assertEquals(path, project.file("src/main/java/" + path).lastModified(), lastModified(path));
+		}
+	}
+
+	private void build(boolean onlyWriteChanged, boolean fast) throws Exception {
+		// Touch every source, so nothing is left alone because of its time
+		for (String path : PATHS) {
+			project.file("src/main/java/" + path).setLastModified(System.currentTimeMillis());
+		}
+		CodeswitcherMojo mojo = project.configure(new CodeswitcherMojo());
+		ProjectFixture.set(mojo, "onlyWriteChanged", onlyWriteChanged);
+		ProjectFixture.set(mojo, fast ? "enable" : "disable", new String[] { "FAST" });
+		ProjectFixture.set(mojo, "excludes", new String[] { "**/Excluded.java" });
+		mojo.execute();
+	}
+
+	private void age() {
+		for (String path : PATHS) {
+			project.file("target/preprocessed/" + path).setLastModified(OLD);
+		}
+	}
+
+	private long lastModified(String path) {
+		return project.file("target/preprocessed/" + path).lastModified();
+	}
+
+	private String output(String path) throws Exception {
+		return project.read("target/preprocessed/" + path);
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that includes and excludes select files as they would in other Maven
+ * plugins.
+ */
+public class PathSelectorTest {
+
+	@Test
+	public void testDefaultIncludesAllJavaSource() {
+		PathSelector selector = new PathSelector(null, null);
+		assertTrue(selector.isSelected("A.java"));
+		assertTrue(selector.isSelected("com/example/A.java"));
+		assertFalse(selector.isSelected("com/example/a.properties"));
+		assertFalse(selector.isSelected("A.java.txt"));
+	}
+
+	@Test
+	public void testDoubleStarAtStart() {
+		PathSelector selector = selector("**/A.java");
+		assertTrue(selector.isSelected("A.java"));
+		assertTrue(selector.isSelected("x/y/A.java"));
+		assertFalse(selector.isSelected("x/BA.java"));
+	}
+
+	@Test
+	public void testDoubleStarAtEnd() {
+		PathSelector selector = selector("com/example/**");
+		assertTrue(selector.isSelected("com/example/A.java"));
+		assertTrue(selector.isSelected("com/example/x/y/A.java"));
+		assertFalse(selector.isSelected("com/other/A.java"));
+		assertFalse(selector.isSelected("com/examples/A.java"));
+	}
+
+	@Test
+	public void testDoubleStarInMiddle() {
+		PathSelector selector = selector("com/**/impl/*.java");
+		assertTrue(selector.isSelected("com/impl/A.java"));
+		assertTrue(selector.isSelected("com/x/y/impl/A.java"));
+		assertFalse(selector.isSelected("com/x/impl/y/A.java"));
+	}
+
+	@Test
+	public void testSingleStarAndQuestionMarkStayInOneName() {
+		PathSelector selector = selector("*/A?.java");
+		assertTrue(selector.isSelected("x/AB.java"));
+		assertFalse(selector.isSelected("x/A.java"));
+		assertFalse(selector.isSelected("x/y/AB.java"));
+		assertFalse(selector.isSelected("AB.java"));
+	}
+
+	@Test
+	public void testTrailingSeparatorMatchesEverythingBelow() {
+		assertTrue(selector("com/example/").isSelected("com/example/x/A.java"));
+		assertTrue(selector("com\\example\\").isSelected("com/example/x/A.java"));
+	}
+
+	@Test
+	public void testCaseSensitive() {
+		assertFalse(selector("**/*.JAVA").isSelected("A.java"));
+	}
+
+	@Test
+	public void testExcludes() {
+		PathSelector selector = new PathSelector(null, list("com/example/generated/**", "**/*Test.java"));
+		assertTrue(selector.isSelected("com/example/A.java"));
+		assertFalse(selector.isSelected("com/example/generated/A.java"));
+		assertFalse(selector.isSelected("com/example/ATest.java"));
+	}
+
+	@Test
+	public void testDefaultExcludes() {
+		PathSelector selector = new PathSelector(list("**"), null);
+		assertTrue(selector.isSelected("com/A.java"));
+		assertFalse(selector.isSelected("com/.svn/A.java"));
+		assertFalse(selector.isSelected(".git/config"));
+		assertFalse(selector.isSelected("com/A.java~"));
+		assertFalse(selector.isSelected("com/.DS_Store"));
+	}
+
+	@Test
+	public void testRegularExpression() {
+		PathSelector selector = selector("%regex[com/.*/A\\d\\.java]");
+		assertTrue(selector.isSelected("com/x/A1.java"));
+		assertFalse(selector.isSelected("com/x/AB.java"));
+	}
+
+	@Test
+	public void testBlankPatternsIgnored() {
+		PathSelector selector = new PathSelector(list(" ", "**/*.java"), list(""));
+		assertTrue(selector.isSelected("A.java"));
+	}
+
+	private static PathSelector selector(String include) {
+		return new PathSelector(list(include), null);
+	}
+
+	private static List<String> list(String... patterns) {
+		return Arrays.asList(patterns);
+	}
+}
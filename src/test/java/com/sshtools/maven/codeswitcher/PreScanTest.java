@@ -0,0 +1,91 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks which files the scan lets through, and that the buffer kept for a
+ * thread does not grow to the size of the largest file read.
+ */
+public class PreScanTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void testNeedsProcessing() {
+		PreScan scan = new PreScan(Arrays.asList("@VERSION@"), StandardCharsets.UTF_8);
+		assertFalse(scan.needsProcessing(wrap("class A {\n\tint a; // Count # of lines\n}\n")));
+		assertTrue(scan.needsProcessing(wrap("class A {\n\t//#ifdef DEBUG\n\t//#endif\n}\n")));
+		assertTrue(scan.needsProcessing(wrap("class A {\n\t/ / #ifdef DEBUG\n}\n")));
+		assertTrue(scan.needsProcessing(wrap("String v = \"@VERSION@\";\n")));
+		assertFalse(scan.needsProcessing(wrap("String v = \"@VERSION\";\n")));
+	}
+
+	@Test
+	public void testNotAsciiCompatible() throws Exception {
+		PreScan scan = new PreScan(Collections.<String>emptyList(), StandardCharsets.UTF_16);
+		assertNull(scan.read(write("A.java", 10)));
+	}
+
+	@Test
+	public void testLargeBufferIsNotKept() throws Exception {
+		PreScan scan = new PreScan(Collections.<String>emptyList(), StandardCharsets.UTF_8);
+		ByteBuffer small = scan.read(write("Small.java", 100));
+		assertEquals(100, small.remaining());
+		assertSame(small, scan.read(write("Small2.java", 200)));
+
+		int large = PreScan.MAX_KEPT_BUFFER_SIZE + 1;
+		ByteBuffer data = scan.read(write("Large.java", large));
+		assertEquals(large, data.remaining());
+		assertEquals('x', data.get(large - 1));
+		assertNotSame(small, data);
+
+		// The small one is still the one kept
+		ByteBuffer again = scan.read(write("Small3.java", 300));
+		assertSame(small, again);
+		assertEquals(300, again.remaining());
+	}
+
+	private File write(String name, int size) throws Exception {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) 'x');
+		File file = new File(temp.getRoot(), name);
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	private static ByteBuffer wrap(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.maven.project.MavenProject;
+import org.sonatype.plexus.build.incremental.BuildContext;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+/**
+ * A project on disk, with its main source in <code>src/main/java</code>, and
+ * mojos configured for it as Maven would configure them.
+ */
+class ProjectFixture {
+
+	final File basedir;
+	final MavenProject project;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param basedir base directory of the project
+	 */
+	ProjectFixture(File basedir) {
+		this.basedir = basedir;
+		project = new MavenProject();
+		project.setFile(new File(basedir, "pom.xml"));
+		project.getBuild().setSourceDirectory(file("src/main/java").getAbsolutePath());
+		project.getBuild().setTestSourceDirectory(file("src/test/java").getAbsolutePath());
+	}
+
+	/**
+	 * Configure a mojo for the project, with UTF-8 source, <code>\n</code>
+	 * line separators and a build context that is not incremental.
+	 *
+	 * @param mojo mojo
+	 * @return mojo
+	 */
+	<T extends CodeswitcherMojo> T configure(T mojo) {
+		return configure(mojo, new DefaultBuildContext());
+	}
+
+	/**
+	 * Configure a mojo for the project, with UTF-8 source, <code>\n</code>
+	 * line separators and the given build context.
+	 *
+	 * @param mojo         mojo
+	 * @param buildContext build context
+	 * @return mojo
+	 */
+	<T extends CodeswitcherMojo> T configure(T mojo, BuildContext buildContext) {
+		mojo.project = project;
+		mojo.buildContext = buildContext;
+		set(mojo, "encoding", "UTF-8");
+		set(mojo, "lineSeparator", "lf");
+		return mojo;
+	}
+
+	/**
+	 * Set a parameter of a mojo.
+	 *
+	 * @param mojo  mojo
+	 * @param name  name of the field
+	 * @param value value
+	 */
+	static void set(Object mojo, String name, Object value) {
+		for (Class<?> c = mojo.getClass(); c != null; c = c.getSuperclass()) {
+			try {
+				Field field = c.getDeclaredField(name);
+				field.setAccessible(true);
+				field.set(mojo, value);
+				return;
+			} catch (NoSuchFieldException nsfe) {
+				// Try the super class
+			} catch (IllegalAccessException iae) {
+				throw new IllegalStateException(iae);
+			}
+		}
+		throw new IllegalArgumentException("No field " + name + " in " + mojo.getClass());
+	}
+
+	File file(String path) {
+		return new File(basedir, path);
+	}
+
+	/**
+	 * Write a file, with each line ending in <code>\n</code>.
+	 *
+	 * @param path  path relative to the base directory
+	 * @param lines lines
+	 * @return file
+	 * @throws IOException on error
+	 */
+	File write(String path, String... lines) throws IOException {
+		StringBuilder b = new StringBuilder();
+		for (String line : lines) {
+			b.append(line).append('\n');
+		}
+		File file = file(path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), b.toString().getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	/**
+	 * Read a file.
+	 *
+	 * @param path path relative to the base directory
+	 * @return content
+	 * @throws IOException on error
+	 */
+	String read(String path) throws IOException {
+		return new String(Files.readAllBytes(file(path).toPath()), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,209 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Builds several modules at once with a shared engine, as a reactor built in
+ * parallel would, and checks each comes out the same as when it is built on
+ * its own with an engine of its own.
+ */
+public class SharedEngineTest {
+
+	private static final int MODULES = 6;
+	private static final int FILES = 40;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void testConcurrentSharedBuildsMatchUnshared() throws Exception {
+		final List<ProjectFixture> shared = new ArrayList<ProjectFixture>();
+		List<ProjectFixture> unshared = new ArrayList<ProjectFixture>();
+		for (int i = 0; i < MODULES; i++) {
+			shared.add(module(temp.newFolder("shared-" + i), i));
+			unshared.add(module(temp.newFolder("unshared-" + i), i));
+		}
+		for (int i = 0; i < MODULES; i++) {
+			build(unshared.get(i), i, false, 1);
+		}
+
+		ExecutorService reactor = Executors.newFixedThreadPool(MODULES);
+		try {
+			List<Future<Void>> builds = new ArrayList<Future<Void>>();
+			for (int i = 0; i < MODULES; i++) {
+				final int module = i;
+				builds.add(reactor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						build(shared.get(module), module, true, 3);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> build : builds) {
+				build.get();
+			}
+		} finally {
+			reactor.shutdown();
+		}
+
+		for (int i = 0; i < MODULES; i++) {
+			Map<String, String> expected = tree(unshared.get(i).file("target/preprocessed"));
+			assertEquals(FILES, expected.size());
+			assertEquals("module " + i, expected, tree(shared.get(i).file("target/preprocessed")));
+		}
+	}
+
+	@Test
+	public void testSharedBuildMatchesUnsharedOnOneThread() throws Exception {
+		ProjectFixture shared = module(temp.newFolder("shared"), 0);
+		ProjectFixture unshared = module(temp.newFolder("unshared"), 0);
+		build(shared, 0, true, 1);
+		build(unshared, 0, false, 1);
+		assertEquals(tree(unshared.file("target/preprocessed")), tree(shared.file("target/preprocessed")));
+	}
+
+	@Test
+	public void testSameConfigurationIsShared() {
+		CodeSwitcher a = switcher("A");
+		CodeSwitcher b = switcher("A");
+		String key = "test-" + System.nanoTime();
+		assertSame(SharedEngine.getSwitches(key, a), SharedEngine.getSwitches(key, b));
+		assertNotSame(SharedEngine.getSwitches(key, a), SharedEngine.getSwitches(key + "-other", a));
+
+		assertSame(SharedEngine.getPreScan(set("@A@", "@B@"), StandardCharsets.UTF_8),
+				SharedEngine.getPreScan(set("@B@", "@A@"), StandardCharsets.UTF_8));
+		assertNotSame(SharedEngine.getPreScan(set("@A@"), StandardCharsets.UTF_8),
+				SharedEngine.getPreScan(set("@A@"), StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void testPoolThreadsAreDaemons() throws Exception {
+		ExecutorService pool = SharedEngine.getPool(2);
+		assertSame(pool, SharedEngine.getPool(1));
+		assertTrue(pool.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return Thread.currentThread().isDaemon();
+			}
+		}).get());
+		// Grows to the largest number asked for, and is never shut down
+		assertSame(pool, SharedEngine.getPool(4));
+		assertTrue(((ThreadPoolExecutor) pool).getMaximumPoolSize() >= 4);
+	}
+
+	/*
+	 * Modules with an even number share one configuration, those with an odd
+	 * number each have their own.
+	 */
+	private static void build(ProjectFixture project, int module, boolean sharedEngine, int threads)
+			throws Exception {
+		CodeswitcherMojo mojo = project.configure(new CodeswitcherMojo());
+		ProjectFixture.set(mojo, "sharedEngine", sharedEngine);
+		ProjectFixture.set(mojo, "threads", threads);
+		ProjectFixture.set(mojo, "enable", module % 2 == 0 ? new String[] { "FAST" } : new String[] { "DEBUG" });
+		ProjectFixture.set(mojo, "disable", module % 2 == 0 ? new String[] { "DEBUG" } : new String[] { "FAST" });
+		Token token = new Token();
+		token.key = "@MODULE@";
+		token.value = module % 2 == 0 ? "even" : "module-" + module;
+		ProjectFixture.set(mojo, "tokens", new Token[] { token });
+		mojo.execute();
+	}
+
+	private static ProjectFixture module(File basedir, int module) throws IOException {
+		ProjectFixture project = new ProjectFixture(basedir);
+		for (int i = 0; i < FILES; i++) {
+			String name = "C" + i;
+			String path = "src/main/java/p" + (i % 4) + "/" + name + ".java";
+			switch (i % 3) {
+			case 0:
+				project.write(path, "package p" + (i % 4) + ";", "class " + name + " {", "}");
+				break;
+			case 1:
+				project.write(path, "package p" + (i % 4) + ";", "class " + name + " {", "\t//#ifdef FAST",
+						"\tint fast = " + i + ";", "\t//#else", "\tint slow = " + i + ";", "\t//#endif",
+						"\t//#if DEBUG || FAST", "\tString module = \"@MODULE@\";", "\t//#endif", "}");
+				break;
+			default:
+				project.write(path, "package p" + (i % 4) + ";", "class " + name + " {",
+						"\tString module = \"@MODULE@ " + module + "\";", "\t//#ifdef DEBUG",
+						"\tvoid debug() { }", "\t//#endif", "}");
+				break;
+			}
+		}
+		return project;
+	}
+
+	private static CodeSwitcher switcher(String symbol) {
+		CodeSwitcher switcher = new CodeSwitcher();
+		switcher.enableSymbol(symbol);
+		return switcher;
+	}
+
+	private static Set<String> set(String... keys) {
+		return new TreeSet<String>(Arrays.asList(keys));
+	}
+
+	/*
+	 * The content of every file in a directory, by path. Hidden files are
+	 * left out.
+	 */
+	private static Map<String, String> tree(File dir) throws IOException {
+		final Map<String, String> files = new TreeMap<String, String>();
+		final Path root = dir.toPath();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (!file.getFileName().toString().startsWith(".")) {
+					files.put(root.relativize(file).toString().replace(File.separatorChar, '/'),
+							new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks which lines are taken as directives.
+ */
+public class SourceLineTest {
+
+	@Test
+	public void testIf() {
+		assertDirective(SourceLine.IF, "A && B", "//#if A && B");
+		assertDirective(SourceLine.IF, "A", "\t// #if   A  ");
+		assertDirective(SourceLine.IF, "(A)", "//#if(A)");
+		assertDirective(SourceLine.IF, "!A", "//#if!A");
+	}
+
+	@Test
+	public void testBareIfIsNotADirective() {
+		assertDirective(SourceLine.NONE, null, "//#if");
+		assertDirective(SourceLine.NONE, null, "\t//#if   ");
+		assertDirective(SourceLine.NONE, null, "//#if_A");
+		assertDirective(SourceLine.NONE, null, "//#iffy");
+	}
+
+	@Test
+	public void testSpacedIfdefIsStillIfdef() {
+		assertDirective(SourceLine.IFDEF, "X", "//# if def X");
+		assertDirective(SourceLine.IFDEF, "X", "\t// #if def X");
+		assertDirective(SourceLine.IFDEF, "AB", "//#ifdef A B");
+		assertDirective(SourceLine.IF, "de && X", "//#if de && X");
+	}
+
+	@Test
+	public void testOtherDirectives() {
+		assertDirective(SourceLine.IFDEF, "A", "//#ifdef A");
+		assertDirective(SourceLine.IFDEF, "A", "  //# ifdef  A");
+		assertDirective(SourceLine.ELSE, null, "//#else");
+		assertDirective(SourceLine.ENDIF, null, "\t//#endif");
+		assertDirective(SourceLine.DEL, "A", "//#del A");
+		assertDirective(SourceLine.SINGLE_LINE, null, "//#[A] call();");
+		assertDirective(SourceLine.NONE, null, "int x; // #notes");
+	}
+
+	@Test
+	public void testComments() {
+		assertEquals(SourceLine.COMMENT_BOUNDARY, SourceLine.classify("\t/* ").comment);
+		assertEquals(SourceLine.COMMENT_BOUNDARY, SourceLine.classify("*/").comment);
+		assertEquals(SourceLine.COMMENT_STAR, SourceLine.classify("\t * text").comment);
+		assertEquals(SourceLine.COMMENT_SLASHES, SourceLine.classify("\t// text").comment);
+		assertEquals(SourceLine.NONE, SourceLine.classify("\t//#else").comment);
+		assertEquals(SourceLine.NONE, SourceLine.classify("code();").comment);
+	}
+
+	private static void assertDirective(int directive, String argument, String line) {
+		SourceLine classified = SourceLine.classify(line);
+		assertEquals(line, directive, classified.directive);
+		assertEquals(line, argument, classified.argument);
+	}
+}
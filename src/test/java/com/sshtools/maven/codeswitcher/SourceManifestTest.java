@@ -0,0 +1,149 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a manifest survives being saved and loaded, how a file is
+ * compared with its entry, and which symbols are found to have changed.
+ */
+public class SourceManifestTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		SourceManifest manifest = new SourceManifest("config", "base", states("/A", "on", "/B", "off"));
+		manifest.put("a/A.java", new SourceManifest.Entry(10, 1000, "abc", false, set("A", "B")));
+		manifest.put("a/B.java", new SourceManifest.Entry(20, 2000, "def", true, null));
+		manifest.put("C.java", new SourceManifest.Entry(0, 3000, "ghi", false, set()));
+		File file = new File(temp.getRoot(), "sub/manifest.properties");
+		manifest.save(file);
+
+		SourceManifest loaded = SourceManifest.load(file);
+		assertEquals("config", loaded.getConfigurationHash());
+		assertEquals(manifest.getPaths(), loaded.getPaths());
+		for (String path : manifest.getPaths()) {
+			SourceManifest.Entry expected = manifest.get(path);
+			SourceManifest.Entry actual = loaded.get(path);
+			assertEquals(path, expected.toString(), actual.toString());
+			assertEquals(path, expected.symbols, actual.symbols);
+		}
+		// Symbol states and the base configuration survive too
+		assertEquals(set(), manifest.getChangedSymbols(loaded));
+	}
+
+	@Test
+	public void testMissingOrUnreadableIsEmpty() throws Exception {
+		SourceManifest missing = SourceManifest.load(new File(temp.getRoot(), "missing.properties"));
+		assertEquals("", missing.getConfigurationHash());
+		assertTrue(missing.getPaths().isEmpty());
+
+		File file = temp.newFile("bad.properties");
+		Files.write(file.toPath(), "file.A.java=not,an,entry\n".getBytes(StandardCharsets.ISO_8859_1));
+		assertTrue(SourceManifest.load(file).getPaths().isEmpty());
+	}
+
+	@Test
+	public void testConfigurationMismatchProcessesEverything() {
+		SourceManifest previous = new SourceManifest("config1", "base1", states("/A", "on"));
+		SourceManifest current = new SourceManifest("config2", "base2", states("/A", "on"));
+		assertFalse(current.getConfigurationHash().equals(previous.getConfigurationHash()));
+		assertNull(current.getChangedSymbols(previous));
+		// A manifest that was never written has no base to compare
+		assertNull(current.getChangedSymbols(new SourceManifest("", "", states())));
+	}
+
+	@Test
+	public void testChangedSymbols() {
+		SourceManifest previous = new SourceManifest("config1", "base", states("/A", "on", "/B", "off", "/C", "on"));
+		SourceManifest current = new SourceManifest("config2", "base", states("/A", "off", "/B", "off", "/D", "on"));
+		assertEquals(set("A", "C", "D"), current.getChangedSymbols(previous));
+	}
+
+	@Test
+	public void testChangedSymbolsOfVariants() {
+		SourceManifest previous = new SourceManifest("config1", "base", states("free/A", "off", "pro/A", "on"));
+		SourceManifest current = new SourceManifest("config2", "base", states("free/A", "off", "pro/A", "off"));
+		assertEquals(set("A"), current.getChangedSymbols(previous));
+	}
+
+	@Test
+	public void testAffectedBy() {
+		assertTrue(new SourceManifest.Entry(0, 0, "", false, set("A", "B")).isAffectedBy(set("B")));
+		assertFalse(new SourceManifest.Entry(0, 0, "", false, set("A", "B")).isAffectedBy(set("C")));
+		assertFalse(new SourceManifest.Entry(0, 0, "", false, set()).isAffectedBy(set("C")));
+		// Not known, so it may be
+		assertTrue(new SourceManifest.Entry(0, 0, "", false, null).isAffectedBy(set("C")));
+	}
+
+	@Test
+	public void testUpToDate() throws Exception {
+		File file = temp.newFile("A.java");
+		Files.write(file.toPath(), "class A {}\n".getBytes(StandardCharsets.UTF_8));
+		String hash = SourceManifest.hash(file);
+		long size = file.length();
+		long lastModified = file.lastModified();
+
+		assertTrue(new SourceManifest.Entry(size, lastModified, "not checked", false, null).isUpToDate(file));
+		// Touched, but the same content
+		assertTrue(new SourceManifest.Entry(size, lastModified - 5000, hash, false, null).isUpToDate(file));
+		assertFalse(new SourceManifest.Entry(size, lastModified - 5000, "other", false, null).isUpToDate(file));
+		assertFalse(new SourceManifest.Entry(size + 1, lastModified, hash, false, null).isUpToDate(file));
+		// Uses the timestamp token, so never up to date
+		assertFalse(new SourceManifest.Entry(size, lastModified, hash, true, null).isUpToDate(file));
+	}
+
+	@Test
+	public void testHash() throws Exception {
+		File file = temp.newFile("A.java");
+		byte[] data = "class A {}\n".getBytes(StandardCharsets.UTF_8);
+		Files.write(file.toPath(), data);
+		assertEquals(SourceManifest.hash(data), SourceManifest.hash(file));
+		assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", SourceManifest.hash(new byte[0]));
+	}
+
+	private static Map<String, String> states(String... keysAndStates) {
+		Map<String, String> states = new TreeMap<String, String>();
+		for (int i = 0; i < keysAndStates.length; i += 2) {
+			states.put(keysAndStates[i], keysAndStates[i + 1]);
+		}
+		return states;
+	}
+
+	private static Set<String> set(String... symbols) {
+		return symbols.length == 0 ? Collections.<String>emptySet() : new TreeSet<String>(Arrays.asList(symbols));
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Processes main, test, generated and extra source roots in one run, and
+ * checks each is written to its own directory.
+ */
+public class SourceRootsTest {
+
+	private static final String PROCESSED = "class %s {\n\tint fast;\n}\n";
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private ProjectFixture project;
+
+	@Before
+	public void setUp() throws Exception {
+		project = new ProjectFixture(temp.getRoot());
+		write("src/main/java/Main.java", "Main");
+		write("src/test/java/MainTest.java", "MainTest");
+		write("target/generated-sources/annotations/Generated.java", "Generated");
+		write("target/generated-test-sources/test-annotations/GeneratedTest.java", "GeneratedTest");
+		write("src/extra/java/Extra.java", "Extra");
+		write("src/other/java/Other.java", "Other");
+		project.project.addCompileSourceRoot(project.file("src/main/java").getAbsolutePath());
+		project.project.addCompileSourceRoot(project.file("target/generated-sources/annotations").getAbsolutePath());
+		project.project.addTestCompileSourceRoot(project.file("src/test/java").getAbsolutePath());
+		project.project.addTestCompileSourceRoot(
+				project.file("target/generated-test-sources/test-annotations").getAbsolutePath());
+	}
+
+	@Test
+	public void testOnlySourceDirectoryByDefault() throws Exception {
+		build(false, false, null);
+		assertProcessed("target/preprocessed/Main.java", "Main");
+		assertFalse(project.file("target/preprocessed-test").exists());
+		assertFalse(project.file("target/preprocessed-target-generated-sources-annotations").exists());
+	}
+
+	@Test
+	public void testCompileSourceRoots() throws Exception {
+		build(true, false, null);
+		assertProcessed("target/preprocessed/Main.java", "Main");
+		assertProcessed("target/preprocessed-target-generated-sources-annotations/Generated.java", "Generated");
+		assertFalse(project.file("target/preprocessed/Generated.java").exists());
+		assertFalse(project.file("target/preprocessed-test").exists());
+	}
+
+	@Test
+	public void testTestSourceRoots() throws Exception {
+		build(false, true, null);
+		assertProcessed("target/preprocessed/Main.java", "Main");
+		assertProcessed("target/preprocessed-test/MainTest.java", "MainTest");
+		assertProcessed(
+				"target/preprocessed-test-target-generated-test-sources-test-annotations/GeneratedTest.java",
+				"GeneratedTest");
+	}
+
+	@Test
+	public void testExtraSourceRoots() throws Exception {
+		SourceRoot extra = new SourceRoot();
+		extra.directory = "src/extra/java";
+		extra.outputDirectory = "target/extra";
+		SourceRoot other = new SourceRoot();
+		other.directory = "src/other/java";
+		SourceRoot otherTest = new SourceRoot();
+		otherTest.directory = project.file("src/test/java").getAbsolutePath();
+		otherTest.test = true;
+		build(false, false, new SourceRoot[] { extra, other, otherTest });
+		assertProcessed("target/preprocessed/Main.java", "Main");
+		assertProcessed("target/extra/Extra.java", "Extra");
+		// Would be written to the same directory as the main source
+		assertProcessed("target/preprocessed-src-other-java/Other.java", "Other");
+		assertProcessed("target/preprocessed-test/MainTest.java", "MainTest");
+	}
+
+	@Test
+	public void testRootsAreOnlyProcessedOnce() throws Exception {
+		SourceRoot again = new SourceRoot();
+		again.directory = "src/main/java";
+		again.outputDirectory = "target/again";
+		build(true, false, new SourceRoot[] { again });
+		assertProcessed("target/preprocessed/Main.java", "Main");
+		assertFalse(project.file("target/again").exists());
+	}
+
+	@Test
+	public void testEachRootHasItsOwnManifest() throws Exception {
+		CodeswitcherMojo mojo = configure(true, true, null);
+		ProjectFixture.set(mojo, "incremental", true);
+		mojo.execute();
+		assertTrue(project.file("target/codeswitcher/manifest.properties").isFile());
+		assertTrue(project.file("target/codeswitcher/manifest-preprocessed-test.properties").isFile());
+		assertTrue(project
+				.file("target/codeswitcher/manifest-preprocessed-target-generated-sources-annotations.properties")
+				.isFile());
+	}
+
+	@Test
+	public void testChangeBuildSourceDirectory() throws Exception {
+		CodeswitcherMojo mojo = configure(true, true, null);
+		ProjectFixture.set(mojo, "changeBuildSourceDirectory", true);
+		mojo.execute();
+		assertEquals(Arrays.asList(project.file("target/preprocessed").getAbsolutePath(),
+				project.file("target/preprocessed-target-generated-sources-annotations").getAbsolutePath()),
+				project.project.getCompileSourceRoots());
+		assertEquals(Arrays.asList(project.file("target/preprocessed-test").getAbsolutePath(),
+				project.file("target/preprocessed-test-target-generated-test-sources-test-annotations")
+						.getAbsolutePath()),
+				project.project.getTestCompileSourceRoots());
+	}
+
+	@Test(expected = MojoExecutionException.class)
+	public void testSourceRootMustHaveDirectory() throws Exception {
+		build(false, false, new SourceRoot[] { new SourceRoot() });
+	}
+
+	private void build(boolean compileSourceRoots, boolean testSourceRoots, SourceRoot[] sourceRoots)
+			throws Exception {
+		configure(compileSourceRoots, testSourceRoots, sourceRoots).execute();
+	}
+
+	private CodeswitcherMojo configure(boolean compileSourceRoots, boolean testSourceRoots,
+			SourceRoot[] sourceRoots) {
+		CodeswitcherMojo mojo = project.configure(new CodeswitcherMojo());
+		ProjectFixture.set(mojo, "enable", new String[] { "FAST" });
+		ProjectFixture.set(mojo, "compileSourceRoots", compileSourceRoots);
+		ProjectFixture.set(mojo, "testSourceRoots", testSourceRoots);
+		ProjectFixture.set(mojo, "sourceRoots", sourceRoots);
+		return mojo;
+	}
+
+	private void write(String path, String name) throws Exception {
+		project.write(path, "class " + name + " {", "\t//#ifdef FAST", "\tint fast;", "\t//#endif", "}");
+	}
+
+	private void assertProcessed(String path, String name) throws Exception {
+		assertEquals(path, String.format(PROCESSED, name), project.read(path));
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Pins the documented matching rules: leftmost match first, then the longest
+ * at that position, and replaced text is never scanned again.
+ */
+public class TokenMatcherTest {
+
+	@Test
+	public void testNoTokens() {
+		String text = "unchanged";
+		assertSame(text, matcher().replace(text));
+		assertSame(text, new TokenMatcher(null).replace(text));
+	}
+
+	@Test
+	public void testNoMatchReturnsSameInstance() {
+		String text = "nothing to see";
+		assertSame(text, matcher("KEY", "value").replace(text));
+	}
+
+	@Test
+	public void testSingleToken() {
+		assertEquals("v1.0 and v1.0", matcher("@VERSION@", "1.0").replace("v@VERSION@ and v@VERSION@"));
+	}
+
+	@Test
+	public void testOverlappingKeysLeftmostWins() {
+		assertEquals("Xd", matcher("abc", "X", "bcd", "Y").replace("abcd"));
+		assertEquals("Xd", matcher("bcd", "Y", "abc", "X").replace("abcd"));
+		assertEquals("1cde", matcher("bcde", "2", "ab", "1").replace("abcde"));
+	}
+
+	@Test
+	public void testPrefixKeysLongestWins() {
+		assertEquals("2 1", matcher("VER", "1", "VERSION", "2").replace("VERSION VER"));
+		assertEquals("2 1", matcher("VERSION", "2", "VER", "1").replace("VERSION VER"));
+	}
+
+	@Test
+	public void testFallsBackWhenLongerKeyFails() {
+		assertEquals("1SI", matcher("VER", "1", "VERSION", "2").replace("VERSI"));
+		assertEquals("aYe", matcher("abcd", "X", "bc", "Y").replace("abce"));
+		assertEquals("a1d", matcher("abc", "2", "b", "1").replace("abd"));
+	}
+
+	@Test
+	public void testAdjacentMatches() {
+		assertEquals("xx", matcher("AB", "x").replace("ABAB"));
+		assertEquals("12", matcher("A", "1", "B", "2").replace("AB"));
+		assertEquals("-12-", matcher("AB", "1", "CD", "2").replace("-ABCD-"));
+	}
+
+	@Test
+	public void testReplacementIsNotScannedAgain() {
+		assertEquals("BC", matcher("A", "B", "B", "C").replace("AB"));
+		assertEquals("XX", matcher("X", "XX").replace("X"));
+		assertEquals("@V@ ok", matcher("@V@", "@V@", "ok", "ok").replace("@V@ ok"));
+	}
+
+	@Test
+	public void testEmptyKeyIgnoredAndNullValueRemoves() {
+		assertEquals(1, matcher("", "x", "A", null).size());
+		assertEquals("bc", matcher("", "x", "A", null).replace("bAc"));
+	}
+
+	@Test
+	public void testNonAsciiKeys() {
+		assertEquals("prix 5 \u20ac", matcher("\u00a3", "\u20ac").replace("prix 5 \u00a3"));
+	}
+
+	private static TokenMatcher matcher(String... keysAndValues) {
+		Map<String, String> tokens = new LinkedHashMap<String, String>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			tokens.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return new TokenMatcher(tokens);
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * SSHTOOLS Limited licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.sshtools.maven.codeswitcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that every variant produced from a single pass comes out the same
+ * as the source processed on its own with the symbols and tokens of that
+ * variant.
+ */
+public class VariantsTest {
+
+	private static final String[] ENABLE = { "LOG" };
+	private static final String[] DISABLE = { "DEBUG" };
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test
+	public void testVariantsMatchSeparateRuns() throws Exception {
+		assertVariantsMatchSeparateRuns(1);
+	}
+
+	@Test
+	public void testVariantsMatchSeparateRunsConcurrently() throws Exception {
+		assertVariantsMatchSeparateRuns(3);
+	}
+
+	@Test
+	public void testVariantOutputDirectory() throws Exception {
+		ProjectFixture project = source(temp.newFolder("project"));
+		Variant free = variant("free", null, new String[] { "PRO" }, "Free");
+		free.outputDirectory = "target/free-source";
+		CodeswitcherMojo mojo = configure(project, ENABLE, DISABLE, 1);
+		ProjectFixture.set(mojo, "variants", new Variant[] { free });
+		mojo.execute();
+		assertEquals("package a;\nclass Edition {\n\tString name = \"Free\";\n\tint max = 10;\n}\n",
+				project.read("target/free-source/a/Edition.java"));
+		assertFalse(project.file("target/preprocessed/free").exists());
+	}
+
+	private void assertVariantsMatchSeparateRuns(int threads) throws Exception {
+		Variant free = variant("free", null, new String[] { "PRO" }, "Free");
+		Variant pro = variant("pro", new String[] { "PRO" }, null, "Pro");
+		// Turns the plugin's own symbols around, and replaces one of its tokens
+		Variant debug = variant("debug", new String[] { "DEBUG", "PRO" }, new String[] { "LOG" }, "Debug");
+		debug.tokens = new Token[] { debug.tokens[0], token("@BUILD@", "debug") };
+		Variant[] variants = { free, pro, debug };
+
+		ProjectFixture project = source(temp.newFolder("variants"));
+		CodeswitcherMojo mojo = configure(project, ENABLE, DISABLE, threads);
+		ProjectFixture.set(mojo, "variants", variants);
+		mojo.execute();
+
+		for (Variant variant : variants) {
+			Set<String> on = new LinkedHashSet<String>(Arrays.asList(ENABLE));
+			Set<String> off = new LinkedHashSet<String>(Arrays.asList(DISABLE));
+			on.removeAll(list(variant.disable));
+			off.removeAll(list(variant.enable));
+			on.addAll(list(variant.enable));
+			off.addAll(list(variant.disable));
+			Map<String, Token> tokens = new TreeMap<String, Token>();
+			tokens.put("@BUILD@", token("@BUILD@", "release"));
+			for (Token token : variant.tokens) {
+				tokens.put(token.key, token);
+			}
+
+			ProjectFixture single = source(temp.newFolder(variant.name));
+			CodeswitcherMojo singleMojo = configure(single, on.toArray(new String[0]), off.toArray(new String[0]),
+					threads);
+			ProjectFixture.set(singleMojo, "tokens", tokens.values().toArray(new Token[0]));
+			singleMojo.execute();
+
+			Map<String, String> expected = tree(single.file("target/preprocessed"));
+			assertEquals(3, expected.size());
+			assertEquals(variant.name, expected, tree(project.file("target/preprocessed/" + variant.name)));
+		}
+		assertEquals("package a;\nclass Log {\n\tvoid debug() { }\n}\n",
+				project.read("target/preprocessed/debug/a/Log.java"));
+		assertEquals("package a;\nclass Log {\n\tvoid log() { System.out.println(\"release\"); }\n}\n",
+				project.read("target/preprocessed/pro/a/Log.java"));
+	}
+
+	private static CodeswitcherMojo configure(ProjectFixture project, String[] enable, String[] disable,
+			int threads) {
+		CodeswitcherMojo mojo = project.configure(new CodeswitcherMojo());
+		ProjectFixture.set(mojo, "enable", enable);
+		ProjectFixture.set(mojo, "disable", disable);
+		ProjectFixture.set(mojo, "threads", threads);
+		ProjectFixture.set(mojo, "tokens", new Token[] { token("@BUILD@", "release") });
+		return mojo;
+	}
+
+	private static ProjectFixture source(File basedir) throws IOException {
+		ProjectFixture project = new ProjectFixture(basedir);
+		project.write("src/main/java/a/Edition.java", "package a;", "class Edition {",
+				"\tString name = \"@EDITION@\";", "\t//#ifdef PRO", "\tint max = 1000;", "\t//#else",
+				"\tint max = 10;", "\t//#endif", "}");
+		project.write("src/main/java/a/Log.java", "package a;", "class Log {", "\t//#if LOG && !DEBUG",
+				"\tvoid log() { System.out.println(\"@BUILD@\"); }", "\t//#endif", "\t//#ifdef DEBUG",
+				"\tvoid debug() { }", "\t//#endif", "}");
+		project.write("src/main/java/a/b/Plain.java", "package a.b;", "class Plain {", "}");
+		return project;
+	}
+
+	private static Variant variant(String name, String[] enable, String[] disable, String edition) {
+		Variant variant = new Variant();
+		variant.name = name;
+		variant.enable = enable;
+		variant.disable = disable;
+		variant.tokens = new Token[] { token("@EDITION@", edition) };
+		return variant;
+	}
+
+	private static Token token(String key, String value) {
+		Token token = new Token();
+		token.key = key;
+		token.value = value;
+		return token;
+	}
+
+	private static Set<String> list(String[] symbols) {
+		return symbols == null ? new LinkedHashSet<String>() : new LinkedHashSet<String>(Arrays.asList(symbols));
+	}
+
+	/*
+	 * The content of every file in a directory, by path. Hidden files, such
+	 * as the cache key, are left out.
+	 */
+	private static Map<String, String> tree(File dir) throws IOException {
+		final Map<String, String> files = new TreeMap<String, String>();
+		final Path root = dir.toPath();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (!file.getFileName().toString().startsWith(".")) {
+					files.put(root.relativize(file).toString().replace(File.separatorChar, '/'),
+							new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+}
@@ -0,0 +1,11 @@
+package golden;
+
+public class Crlf {
+	//#ifdef OFF
+/*
+	int off;
+*/
+	//#else
+	int on;
+	//#endif
+}
@@ -0,0 +1,10 @@
+package golden;
+
+public class EndOfFile {
+}
+//#ifdef OFF
+/*
+class Extra {
+}
+*/
+//#endif
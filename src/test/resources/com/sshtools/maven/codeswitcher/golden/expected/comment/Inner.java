@@ -0,0 +1,15 @@
+package golden;
+
+public class Inner {
+	void run() {
+		//#ifdef ON
+		System.out.println("single on, in enabled block");
+		System.out.println("Acme 1.2.3");
+		//#else
+/*
+		System.out.println("single on, in removed block");
+		System.out.println("removed");
+*/
+		//#endif
+	}
+}
@@ -0,0 +1,10 @@
+package golden;
+
+public class Single {
+	void run() {
+		System.out.println("on");
+		//#[UNKNOWN] System.out.println("unknown");
+	tabbed();
+		String v = "1.2.3 of Acme";
+	}
+}
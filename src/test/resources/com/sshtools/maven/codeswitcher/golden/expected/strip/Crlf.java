@@ -0,0 +1,5 @@
+package golden;
+
+public class Crlf {
+	int on;
+}
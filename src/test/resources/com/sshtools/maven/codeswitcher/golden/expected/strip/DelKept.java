@@ -0,0 +1,7 @@
+package golden;
+
+//#del OFF
+//#del UNKNOWN
+public class DelKept {
+	private int on;
+}
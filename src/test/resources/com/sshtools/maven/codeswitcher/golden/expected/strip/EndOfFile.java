@@ -0,0 +1,4 @@
+package golden;
+
+public class EndOfFile {
+}
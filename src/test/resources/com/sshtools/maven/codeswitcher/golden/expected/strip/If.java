@@ -0,0 +1,11 @@
+package golden;
+
+public class If {
+	void run() {
+		System.out.println("on and not off");
+		//#if OFF || UNKNOWN
+		System.out.println("unknown result, left alone");
+		//#if
+		System.out.println("a bare if is not a directive");
+	}
+}
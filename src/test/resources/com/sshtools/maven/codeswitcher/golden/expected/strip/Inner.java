@@ -0,0 +1,8 @@
+package golden;
+
+public class Inner {
+	void run() {
+		System.out.println("single on, in enabled block");
+		System.out.println("Acme 1.2.3");
+	}
+}
@@ -0,0 +1,24 @@
+package golden;
+
+public class Styles {
+	void slashStar() {
+		System.out.println("enabled, block comment");
+	}
+
+	void slashSlash() {
+		
+		System.out.println("uncommented");
+		
+	}
+
+	void starred() {
+		 System.out.println("starred");
+	}
+
+	void unknown() {
+		//#ifdef UNKNOWN
+		System.out.println("left alone");
+		//#else
+		//System.out.println("also left alone");
+	}
+}
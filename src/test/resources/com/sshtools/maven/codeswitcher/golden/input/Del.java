@@ -0,0 +1,6 @@
+package golden;
+
+//#del ON
+public class Del {
+	private int debugOnly;
+}
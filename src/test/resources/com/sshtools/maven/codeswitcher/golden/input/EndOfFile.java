@@ -0,0 +1,8 @@
+package golden;
+
+public class EndOfFile {
+}
+//#ifdef OFF
+class Extra {
+}
+//#endif
\ No newline at end of file
@@ -0,0 +1,16 @@
+package golden;
+
+public class If {
+	void run() {
+		//#if ON && !OFF
+		//System.out.println("on and not off");
+		//#else
+		System.out.println("else");
+		//#endif
+		//#if OFF || UNKNOWN
+		System.out.println("unknown result, left alone");
+		//#endif
+		//#if
+		System.out.println("a bare if is not a directive");
+	}
+}
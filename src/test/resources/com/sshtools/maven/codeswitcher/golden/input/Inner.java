@@ -0,0 +1,14 @@
+package golden;
+
+public class Inner {
+	void run() {
+		//#ifdef ON
+		//#[ON] System.out.println("single on, in enabled block");
+		//#[OFF] System.out.println("single off, in enabled block");
+		//System.out.println("BRAND @VERSION@");
+		//#else
+		//#[ON] System.out.println("single on, in removed block");
+		System.out.println("removed");
+		//#endif
+	}
+}
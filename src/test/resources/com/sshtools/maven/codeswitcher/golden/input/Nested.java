@@ -0,0 +1,20 @@
+package golden;
+
+public class Nested {
+	void run() {
+		//#ifdef ON
+		System.out.println("outer on");
+		//#ifdef OFF
+		System.out.println("inner off");
+		//#else
+		//System.out.println("inner else");
+		//#endif
+		System.out.println("after inner");
+		//#else
+		System.out.println("outer else");
+		//#ifdef ON
+		System.out.println("nested in removed branch");
+		//#endif
+		//#endif
+	}
+}
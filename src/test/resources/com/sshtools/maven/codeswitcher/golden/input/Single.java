@@ -0,0 +1,11 @@
+package golden;
+
+public class Single {
+	void run() {
+		//#[ON] System.out.println("on");
+		//#[OFF] System.out.println("off");
+		//#[UNKNOWN] System.out.println("unknown");
+	//#[ON]	tabbed();
+		String v = "@VERSION@ of BRAND";
+	}
+}
@@ -0,0 +1,40 @@
+package golden;
+
+public class Styles {
+	void slashStar() {
+		//#ifdef ON
+		/*
+		System.out.println("enabled, block comment");
+		*/
+		//#else
+		System.out.println("disabled branch");
+		//#endif
+	}
+
+	void slashSlash() {
+		//#ifdef OFF
+		System.out.println("removed");
+		System.out.println("removed too");
+		//#else
+		//
+		// System.out.println("uncommented");
+		//
+		//#endif
+	}
+
+	void starred() {
+		//#ifdef ON
+		/*
+		 * System.out.println("starred");
+		 */
+		//#endif
+	}
+
+	void unknown() {
+		//#ifdef UNKNOWN
+		System.out.println("left alone");
+		//#else
+		//System.out.println("also left alone");
+		//#endif
+	}
+}